@@ -0,0 +1,105 @@
+package gov.usgs.cida.data.grib;
+
+import java.util.List;
+
+import ucar.nc2.Dimension;
+import ucar.nc2.Variable;
+import ucar.nc2.jni.netcdf.Nc4Chunking;
+
+/**
+ * Chunking and compression for NetCDF-4 archive output.
+ *
+ * The chunk shape applies to the (time, y, x) data variables; an entry of 0
+ * means the full length of that dimension.  Other variables on the record
+ * dimension are chunked along it, and everything else is left contiguous.
+ */
+public class ArchiveChunking implements Nc4Chunking {
+
+    /** Full time by small spatial tiles, for pulling time series at a point. */
+    public static final String TIMESERIES = "timeseries";
+    private static final int[] TIMESERIES_SHAPE = new int[] {0, 16, 16};
+
+    /** Chunk length along the record dimension when its full length is not known yet: a 31 day month of hours. */
+    public static final int DEFAULT_RECORD_CHUNK = 31 * 24;
+
+    private final int[] chunkShape;
+    private final int deflateLevel;
+
+    /**
+     * @param chunkShape chunk lengths for the data variables, 0 for a full dimension; may be null for the library default
+     * @param deflateLevel 0 (none) to 9
+     */
+    public ArchiveChunking(int[] chunkShape, int deflateLevel) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("Deflate level must be between 0 and 9, got " + deflateLevel);
+        }
+        this.chunkShape = chunkShape;
+        this.deflateLevel = deflateLevel;
+    }
+
+    /**
+     * Parse a chunk specification, either a preset name or comma separated
+     * lengths such as "744,16,16".
+     *
+     * @param spec chunk specification, may be null or empty
+     * @return chunk shape, or null if none given
+     */
+    public static int[] parseChunkShape(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return null;
+        }
+        if (TIMESERIES.equalsIgnoreCase(spec.trim())) {
+            return TIMESERIES_SHAPE.clone();
+        }
+        String[] parts = spec.split(",");
+        int[] shape = new int[parts.length];
+        for (int i=0; i<parts.length; i++) {
+            shape[i] = Integer.parseInt(parts[i].trim());
+            if (shape[i] < 0) {
+                throw new IllegalArgumentException("Negative chunk length in " + spec);
+            }
+        }
+        return shape;
+    }
+
+    @Override
+    public boolean isChunked(Variable v) {
+        return v.isUnlimited() || appliesTo(v);
+    }
+
+    @Override
+    public long[] computeChunking(Variable v) {
+        List<Dimension> dims = v.getDimensions();
+        long[] result = new long[dims.size()];
+        boolean useShape = appliesTo(v);
+        for (int i=0; i<result.length; i++) {
+            Dimension dim = dims.get(i);
+            int requested = (useShape) ? chunkShape[i] : 0;
+            int length = dim.getLength();
+            if (requested > 0) {
+                result[i] = (length > 0 && !dim.isUnlimited()) ? Math.min(requested, length) : requested;
+            }
+            else if (dim.isUnlimited() || length == 0) {
+                result[i] = DEFAULT_RECORD_CHUNK;
+            }
+            else {
+                result[i] = length;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getDeflateLevel(Variable v) {
+        return deflateLevel;
+    }
+
+    @Override
+    public boolean isShuffle(Variable v) {
+        return deflateLevel > 0;
+    }
+
+    private boolean appliesTo(Variable v) {
+        return chunkShape != null && v.getRank() == chunkShape.length;
+    }
+}
@@ -1,13 +1,13 @@
 package gov.usgs.cida.data.grib;
 
-import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
 
 public class ArchiveException extends Exception implements ArchiveInfoI {
 	private static final long serialVersionUID = 1L;
 	private int rfcCode;
-	private ArchiveConfig config;
+	private ArchiveConfigI config;
 	
-	public ArchiveException(Throwable cause, int rc, ArchiveConfig cfg) {
+	public ArchiveException(Throwable cause, int rc, ArchiveConfigI cfg) {
 		super(cause);
 		
 		rfcCode = rc;
@@ -20,7 +20,7 @@ public class ArchiveException extends Exception implements ArchiveInfoI {
 	}
 
 	@Override
-	public ArchiveConfig getConfig() {
+	public ArchiveConfigI getConfig() {
 		return config;
 	}
 	
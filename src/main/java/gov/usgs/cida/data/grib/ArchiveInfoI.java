@@ -1,11 +1,11 @@
 package gov.usgs.cida.data.grib;
 
-import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
 
 public interface ArchiveInfoI {
 
 	public abstract int getRfcCode();
 
-	public abstract ArchiveConfig getConfig();
+	public abstract ArchiveConfigI getConfig();
 
 }
\ No newline at end of file
@@ -0,0 +1,201 @@
+package gov.usgs.cida.data.grib;
+
+import java.io.Serializable;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridDatatype;
+import ucar.nc2.dt.grid.GridDataset;
+import ucar.unidata.geoloc.ProjectionImpl;
+
+/**
+ * Everything RollingNetCDFArchive.define takes from a GRIB prototype: the
+ * dimensions, variables and attributes of the source, its x/y axis values
+ * and projection (the lat/lons themselves are in LatLonCache), and a
+ * signature of the grid.  It is the same for every file of an RFC, so it can
+ * be kept between runs (see SchemaCache) and used to define an archive
+ * without opening any GRIB input.
+ */
+public class ArchiveSchema implements Serializable {
+
+    private static final long serialVersionUID = 3L;
+
+    private final List<Dim> dimensions;
+    private final List<Var> variables;
+    private final List<Attr> globalAttributes;
+    private final double[] xCoords;
+    private final double[] yCoords;
+    // lat/lon are kept in the LatLonCache, not here
+    private final ProjectionImpl projection;
+    private final String gridSignature;
+
+    ArchiveSchema(List<Dim> dimensions, List<Var> variables, List<Attr> globalAttributes,
+            double[] xCoords, double[] yCoords, ProjectionImpl projection, String gridSignature) {
+        this.dimensions = dimensions;
+        this.variables = variables;
+        this.globalAttributes = globalAttributes;
+        this.xCoords = xCoords;
+        this.yCoords = yCoords;
+        this.projection = projection;
+        this.gridSignature = gridSignature;
+    }
+
+    /**
+     * Describe the source dataset of a prototype file.
+     */
+    public static ArchiveSchema from(GridDataset gridDs, GridDatatype gdt) {
+        NetcdfDataset srcNc = gridDs.getNetcdfDataset();
+
+        List<Dim> dims = new ArrayList<Dim>();
+        for (Dimension dim : srcNc.getDimensions()) {
+            dims.add(new Dim(dim.getName(), dim.getLength()));
+        }
+        List<Var> vars = new ArrayList<Var>();
+        for (Variable var : srcNc.getVariables()) {
+            vars.add(new Var(var.getFullName(), var.getDataType(), var.getDimensionsString(), attrs(var.getAttributes())));
+        }
+        double[] xCoords = GribUtils.getXCoords(gridDs);
+        double[] yCoords = GribUtils.getYCoords(gridDs);
+        ProjectionImpl projection = gdt.getCoordinateSystem().getProjection();
+        String signature = LatLonCache.keyFor(xCoords, yCoords, projection);
+        return new ArchiveSchema(dims, vars, attrs(srcNc.getGlobalAttributes()),
+                xCoords, yCoords, projection, signature);
+    }
+
+    /**
+     * Signature of the grid of a dataset, to compare against the one a
+     * schema was made from.
+     */
+    public static String gridSignature(GridDataset gridDs) {
+        GridDatatype gdt = GribUtils.getDatatypeFromDataset(gridDs);
+        return LatLonCache.keyFor(GribUtils.getXCoords(gridDs), GribUtils.getYCoords(gridDs),
+                gdt.getCoordinateSystem().getProjection());
+    }
+
+    private static List<Attr> attrs(List<Attribute> attributes) {
+        List<Attr> result = new ArrayList<Attr>(attributes.size());
+        for (Attribute attr : attributes) {
+            result.add(Attr.of(attr));
+        }
+        return result;
+    }
+
+    List<Dim> getDimensions() {
+        return Collections.unmodifiableList(dimensions);
+    }
+
+    List<Var> getVariables() {
+        return Collections.unmodifiableList(variables);
+    }
+
+    List<Attribute> getGlobalAttributes() {
+        return toAttributes(globalAttributes);
+    }
+
+    double[] getXCoords() {
+        return xCoords;
+    }
+
+    double[] getYCoords() {
+        return yCoords;
+    }
+
+    /**
+     * @return [0] lats and [1] lons, in y-major order, from the cache,
+     *         which projects them again if it no longer has them
+     */
+    DoubleBuffer[] getLatLons(LatLonCache latLonCache) {
+        return latLonCache.getLatLons(xCoords, yCoords, projection);
+    }
+
+    public String getGridSignature() {
+        return gridSignature;
+    }
+
+    static List<Attribute> toAttributes(List<Attr> attrs) {
+        List<Attribute> result = new ArrayList<Attribute>(attrs.size());
+        for (Attr attr : attrs) {
+            result.add(attr.toAttribute());
+        }
+        return result;
+    }
+
+    static class Dim implements Serializable {
+        private static final long serialVersionUID = 3L;
+
+        final String name;
+        final int length;
+
+        Dim(String name, int length) {
+            this.name = name;
+            this.length = length;
+        }
+    }
+
+    static class Var implements Serializable {
+        private static final long serialVersionUID = 3L;
+
+        final String name;
+        final String dataType;
+        final String dimensions;
+        final List<Attr> attributes;
+
+        Var(String name, DataType dataType, String dimensions, List<Attr> attributes) {
+            this.name = name;
+            this.dataType = dataType.name();
+            this.dimensions = dimensions;
+            this.attributes = attributes;
+        }
+
+        DataType getDataType() {
+            return DataType.valueOf(dataType);
+        }
+
+        List<Attribute> getAttributes() {
+            return toAttributes(attributes);
+        }
+    }
+
+    /**
+     * Attribute value held as a string or a 1D primitive array.
+     */
+    static class Attr implements Serializable {
+        private static final long serialVersionUID = 3L;
+
+        final String name;
+        final String dataType;
+        final String stringValue;
+        final Object values;
+
+        private Attr(String name, String dataType, String stringValue, Object values) {
+            this.name = name;
+            this.dataType = dataType;
+            this.stringValue = stringValue;
+            this.values = values;
+        }
+
+        static Attr of(Attribute attr) {
+            if (attr.isString()) {
+                return new Attr(attr.getName(), DataType.STRING.name(), attr.getStringValue(), null);
+            }
+            Array values = attr.getValues();
+            return new Attr(attr.getName(), attr.getDataType().name(), null,
+                    values.get1DJavaArray(values.getElementType()));
+        }
+
+        Attribute toAttribute() {
+            if (values == null) {
+                return new Attribute(name, stringValue);
+            }
+            int length = java.lang.reflect.Array.getLength(values);
+            return new Attribute(name, Array.factory(DataType.valueOf(dataType), new int[] {length}, values));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package gov.usgs.cida.data.grib;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes input files on a worker pool while the calling thread appends the
+ * results to the archive, one file at a time and in input order.  At most
+ * maxInFlight files are decoding or waiting to be written at any time, which
+ * bounds the memory held in decoded slices.
+ */
+public class DecodePipeline {
+
+	private static final Logger log = LoggerFactory.getLogger(DecodePipeline.class);
+
+	private final ExecutorService executor;
+	private final int maxInFlight;
+
+	public DecodePipeline(ExecutorService executor, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Need at least one file in flight, got " + maxInFlight);
+		}
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+	}
+
+	public void run(final RollingNetCDFArchive archive, List<File> inputs) throws Exception {
+		LinkedList<Future<DecodedFile>> inFlight = new LinkedList<Future<DecodedFile>>();
+		Iterator<File> files = inputs.iterator();
+		try {
+			while (files.hasNext() || !inFlight.isEmpty()) {
+				while (files.hasNext() && inFlight.size() < maxInFlight) {
+					final File f = files.next();
+					inFlight.add(executor.submit(new Callable<DecodedFile>() {
+						@Override
+						public DecodedFile call() throws Exception {
+							return archive.decode(f);
+						}
+					}));
+				}
+				DecodedFile decoded = await(inFlight.removeFirst());
+				log.trace("appending {} timesteps from {}", decoded.size(), decoded.getSource());
+				archive.append(decoded);
+			}
+		} finally {
+			for (Future<DecodedFile> pending : inFlight) {
+				pending.cancel(true);
+			}
+		}
+	}
+
+	private static DecodedFile await(Future<DecodedFile> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package gov.usgs.cida.data.grib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ucar.ma2.Array;
+
+/**
+ * Timesteps read from one input file, ready to be appended to an archive.
+ * Produced by RollingNetCDFArchive.decode and consumed by
+ * RollingNetCDFArchive.append.
+ */
+public class DecodedFile {
+
+    private final File source;
+    private final List<Grid> grids;
+
+    DecodedFile(File source) {
+        this.source = source;
+        this.grids = new ArrayList<Grid>();
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    /**
+     * @param capacity timesteps expected, the length of the time axis read
+     */
+    Grid addGrid(String target, String timeAxisName, int ny, int nx, int capacity) {
+        Grid grid = new Grid(target, timeAxisName, ny, nx, capacity);
+        grids.add(grid);
+        return grid;
+    }
+
+    List<Grid> getGrids() {
+        return Collections.unmodifiableList(grids);
+    }
+
+    /**
+     * @return number of timesteps held, over all variables
+     */
+    public int size() {
+        int size = 0;
+        for (Grid grid : grids) {
+            size += grid.size();
+        }
+        return size;
+    }
+
+    /**
+     * Timesteps of one source variable, to be written to its target variable.
+     */
+    static class Grid {
+        private final String target;
+        private final String timeAxisName;
+        private final int ny;
+        private final int nx;
+        // primitive, so adding a timestep boxes nothing
+        private int[] timeValues;
+        private int count = 0;
+        private final List<Array> slices;
+
+        Grid(String target, String timeAxisName, int ny, int nx, int capacity) {
+            this.target = target;
+            this.timeAxisName = timeAxisName;
+            this.ny = ny;
+            this.nx = nx;
+            this.timeValues = new int[Math.max(capacity, 1)];
+            this.slices = new ArrayList<Array>(Math.max(capacity, 1));
+        }
+
+        void add(int timeValue, Array slice) {
+            if (count == timeValues.length) {
+                timeValues = Arrays.copyOf(timeValues, 2 * count);
+            }
+            timeValues[count++] = timeValue;
+            slices.add(slice);
+        }
+
+        String getTarget() {
+            return target;
+        }
+
+        String getTimeAxisName() {
+            return timeAxisName;
+        }
+
+        int getYLength() {
+            return ny;
+        }
+
+        int getXLength() {
+            return nx;
+        }
+
+        int size() {
+            return count;
+        }
+
+        int getTimeValue(int i) {
+            if (i >= count) {
+                throw new IndexOutOfBoundsException("Timestep " + i + " of " + count);
+            }
+            return timeValues[i];
+        }
+
+        Array getSlice(int i) {
+            return slices.get(i);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package gov.usgs.cida.data.grib;
+
+import com.google.common.hash.Hashing;
+import java.io.File;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.nc2.grib.GribCollection;
+import ucar.nc2.util.DiskCache2;
+
+/**
+ * Keeps the index files the GRIB reader builds (.gbx9, .ncx) in one local
+ * directory instead of next to the data, which on the archive mounts is
+ * read-only.  Index files are named for the path, modification time and
+ * size of the data file, so a GRIB file that is replaced gets a new index
+ * and the second open of an unchanged file skips indexing.
+ *
+ * The cache is installed for the whole JVM, since the reader looks it up
+ * statically, so only the archiver installs it, from setGribIndexDir;
+ * other readers of GRIB, such as GridCoordsNcml, leave the reader as it is.
+ * The directory defaults to ~/.ncetl/gribindex and can be changed with the
+ * system property ncetl.grib.index or setGribIndexDir on the archiver.
+ */
+public class GribIndexCache extends DiskCache2 {
+
+    public static final String CACHE_DIR_PROPERTY = "ncetl.grib.index";
+    private static final String[] INDEX_SUFFIXES = new String[] {".gbx9", ".gbx8", ".ncx"};
+
+    private static final Logger log = LoggerFactory.getLogger(GribIndexCache.class);
+
+    private static GribIndexCache installed = null;
+
+    private final File cacheDir;
+
+    public GribIndexCache(File cacheDir) {
+        // no scouring: entries for files that are gone are cheap and left alone
+        super(cacheDir.getAbsolutePath(), false, 0, 0);
+        setAlwaysUseCache(true);
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Make the reader keep its index files in this directory.
+     */
+    public static synchronized void install(File cacheDir) {
+        if (installed != null && installed.cacheDir.equals(cacheDir)) {
+            return;
+        }
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            log.warn("Could not create GRIB index directory {}, indexes stay beside the data", cacheDir);
+            return;
+        }
+        log.info("Caching GRIB indexes in {}", cacheDir);
+        installed = new GribIndexCache(cacheDir);
+        GribCollection.setDiskCache2(installed);
+    }
+
+    /**
+     * Install the default cache unless one has been installed already.
+     */
+    public static synchronized void installDefault() {
+        if (installed == null) {
+            String dir = System.getProperty(CACHE_DIR_PROPERTY,
+                    System.getProperty("user.home") + File.separator + ".ncetl" + File.separator + "gribindex");
+            install(new File(dir));
+        }
+    }
+
+    @Override
+    public File getCacheFile(String fileLocation) {
+        return new File(cacheDir, keyFor(fileLocation));
+    }
+
+    @Override
+    public File getFile(String fileLocation) {
+        return getCacheFile(fileLocation);
+    }
+
+    /**
+     * @param indexLocation path of an index file as the reader names it,
+     * the data file path plus an index suffix
+     */
+    static String keyFor(String indexLocation) {
+        String dataLocation = indexLocation;
+        String suffix = "";
+        for (String s : INDEX_SUFFIXES) {
+            if (indexLocation.endsWith(s)) {
+                dataLocation = indexLocation.substring(0, indexLocation.length() - s.length());
+                suffix = s;
+                break;
+            }
+        }
+        File data = new File(dataLocation).getAbsoluteFile();
+        String hash = Hashing.sha1().newHasher()
+                .putString(data.getPath())
+                .putLong(data.lastModified())
+                .putLong(data.length())
+                .hash().toString();
+        return data.getName() + "." + hash + suffix;
+    }
+}
@@ -3,7 +3,10 @@ package gov.usgs.cida.data.grib;
 import gov.usgs.cida.gdp.coreprocessing.analysis.grid.CRSUtility;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import ucar.nc2.constants.AxisType;
 import ucar.nc2.constants.FeatureType;
@@ -23,6 +26,8 @@ import ucar.unidata.geoloc.ProjectionImpl;
  */
 public class GribUtils {
     
+    private static ForkJoinPool projectionPool = null;
+    
     public static double[][] transformToLatLonNetCDFStyle(double[] xCoords, double[] yCoords, GridDatatype gdt) {
         double[][] from = new double[2][xCoords.length * yCoords.length];
         for (int y=0; y<yCoords.length; y++) {
@@ -36,6 +41,93 @@ public class GribUtils {
         return projToLatLon;
     }
     
+    /**
+     * Same result as transformToLatLonNetCDFStyle, projected in blocks of
+     * rows on a fork-join pool.  Each block projects its points through a
+     * small buffer of its own and copies them into the output, so the grid
+     * is never duplicated as a whole.
+     * 
+     * @param lats receives the latitudes, y-major, length x * y
+     * @param lons receives the longitudes, y-major, length x * y
+     */
+    public static void transformToLatLonTiled(double[] xCoords, double[] yCoords, ProjectionImpl projection,
+            double[] lats, double[] lons, ForkJoinPool pool) {
+        int size = xCoords.length * yCoords.length;
+        if (lats.length < size || lons.length < size) {
+            throw new IllegalArgumentException("Output buffers must hold " + size + " points");
+        }
+        pool.invoke(new ProjectRows(xCoords, yCoords, projection, lats, lons, 0, yCoords.length));
+    }
+    
+    public static double[][] transformToLatLonTiled(double[] xCoords, double[] yCoords, GridDatatype gdt) {
+        double[][] latLons = new double[2][xCoords.length * yCoords.length];
+        transformToLatLonTiled(xCoords, yCoords, gdt.getCoordinateSystem().getProjection(),
+                latLons[0], latLons[1], getProjectionPool());
+        return latLons;
+    }
+    
+    /**
+     * Pool shared by tiled projections, one thread per processor.
+     */
+    public static synchronized ForkJoinPool getProjectionPool() {
+        if (projectionPool == null) {
+            projectionPool = new ForkJoinPool();
+        }
+        return projectionPool;
+    }
+    
+    /**
+     * Projects rows [first, last), splitting in half until a block has no
+     * more than TILE_POINTS points.
+     */
+    static class ProjectRows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        static final int TILE_POINTS = 8192;
+        
+        private final double[] xCoords;
+        private final double[] yCoords;
+        private final ProjectionImpl projection;
+        private final double[] lats;
+        private final double[] lons;
+        private final int first;
+        private final int last;
+        
+        ProjectRows(double[] xCoords, double[] yCoords, ProjectionImpl projection,
+                double[] lats, double[] lons, int first, int last) {
+            this.xCoords = xCoords;
+            this.yCoords = yCoords;
+            this.projection = projection;
+            this.lats = lats;
+            this.lons = lons;
+            this.first = first;
+            this.last = last;
+        }
+        
+        @Override
+        protected void compute() {
+            int rows = last - first;
+            if (rows > 1 && (long) rows * xCoords.length > TILE_POINTS) {
+                int middle = first + rows / 2;
+                invokeAll(new ProjectRows(xCoords, yCoords, projection, lats, lons, first, middle),
+                        new ProjectRows(xCoords, yCoords, projection, lats, lons, middle, last));
+                return;
+            }
+            int nx = xCoords.length;
+            int points = rows * nx;
+            double[][] from = new double[2][points];
+            double[][] to = new double[2][points];
+            for (int y=first; y<last; y++) {
+                int offset = (y - first) * nx;
+                System.arraycopy(xCoords, 0, from[0], offset, nx);
+                Arrays.fill(from[1], offset, offset + nx, yCoords[y]);
+            }
+            // projections are not documented as thread safe, so each block uses its own
+            projection.constructCopy().projToLatLon(from, to);
+            System.arraycopy(to[0], 0, lats, first * nx, points);
+            System.arraycopy(to[1], 0, lons, first * nx, points);
+        }
+    }
+    
     public static double[] getXCoords(GridDataset gridDs) {
         NetcdfDataset nc = gridDs.getNetcdfDataset();
         CoordinateAxis axis = nc.findCoordinateAxis(AxisType.GeoX);
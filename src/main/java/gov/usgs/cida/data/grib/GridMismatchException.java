@@ -0,0 +1,16 @@
+package gov.usgs.cida.data.grib;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An input file is on a different grid from the schema its archive was
+ * defined with.
+ */
+public class GridMismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public GridMismatchException(File input, String expected, String actual) {
+        super("Grid of " + input + " has signature " + actual + ", archive expects " + expected);
+    }
+}
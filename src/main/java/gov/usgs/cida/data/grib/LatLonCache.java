@@ -0,0 +1,184 @@
+package gov.usgs.cida.data.grib;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.nc2.dt.GridDatatype;
+import ucar.unidata.geoloc.ProjectionImpl;
+import ucar.unidata.util.Parameter;
+
+/**
+ * Cache of projected lat/lon coordinates, keyed by the projection parameters
+ * and the x/y axis values of a grid.  Each entry is kept on disk as the
+ * lats followed by the lons, as big-endian doubles, and is read back by
+ * memory mapping the file; the mapped buffers are handed out as they are,
+ * not copied onto the heap.  Recently used entries are also held in memory.
+ *
+ * The directory defaults to ~/.ncetl/latlon and can be changed with the
+ * system property ncetl.latlon.cache.
+ */
+public class LatLonCache {
+
+    public static final String CACHE_DIR_PROPERTY = "ncetl.latlon.cache";
+    private static final String SUFFIX = ".latlon";
+    private static final int DOUBLE_BYTES = 8;
+
+    private static final Logger log = LoggerFactory.getLogger(LatLonCache.class);
+
+    private static LatLonCache defaultCache = null;
+
+    private final File cacheDir;
+    private final ConcurrentMap<String, DoubleBuffer[]> recent;
+
+    /**
+     * @param cacheDir where entries are kept, or null to keep them in memory only
+     */
+    public LatLonCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+        this.recent = new MapMaker().softValues().makeMap();
+    }
+
+    public static synchronized LatLonCache getDefault() {
+        if (defaultCache == null) {
+            String dir = System.getProperty(CACHE_DIR_PROPERTY,
+                    System.getProperty("user.home") + File.separator + ".ncetl" + File.separator + "latlon");
+            defaultCache = new LatLonCache(new File(dir));
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Same result as GribUtils.transformToLatLonNetCDFStyle, computed only
+     * the first time a grid definition is seen.  Each call gets its own
+     * read-only view of the shared values, positioned at the start.
+     *
+     * @return [0] lats and [1] lons, in y-major order
+     */
+    public DoubleBuffer[] getLatLons(double[] xCoords, double[] yCoords, GridDatatype gdt) {
+        return getLatLons(xCoords, yCoords, gdt.getCoordinateSystem().getProjection());
+    }
+
+    public DoubleBuffer[] getLatLons(double[] xCoords, double[] yCoords, ProjectionImpl projection) {
+        String key = keyFor(xCoords, yCoords, projection);
+        int size = xCoords.length * yCoords.length;
+
+        DoubleBuffer[] latLons = recent.get(key);
+        if (latLons != null) {
+            return views(latLons);
+        }
+
+        File cached = (cacheDir == null) ? null : new File(cacheDir, key + SUFFIX);
+        if (cached != null) {
+            try {
+                latLons = read(cached, size);
+            }
+            catch (IOException e) {
+                log.warn("Could not read cached coordinates " + cached, e);
+            }
+        }
+        if (latLons == null) {
+            double[][] projected = new double[2][size];
+            GribUtils.transformToLatLonTiled(xCoords, yCoords, projection, projected[0], projected[1],
+                    GribUtils.getProjectionPool());
+            if (cached != null) {
+                try {
+                    write(cached, projected);
+                }
+                catch (IOException e) {
+                    log.warn("Could not cache coordinates to " + cached, e);
+                }
+            }
+            latLons = new DoubleBuffer[] {
+                DoubleBuffer.wrap(projected[0]).asReadOnlyBuffer(),
+                DoubleBuffer.wrap(projected[1]).asReadOnlyBuffer()
+            };
+        }
+        else {
+            log.debug("using cached coordinates {}", cached);
+        }
+        recent.put(key, latLons);
+        return views(latLons);
+    }
+
+    private static DoubleBuffer[] views(DoubleBuffer[] latLons) {
+        return new DoubleBuffer[] {latLons[0].duplicate(), latLons[1].duplicate()};
+    }
+
+    static String keyFor(double[] xCoords, double[] yCoords, ProjectionImpl projection) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(projection.getClassName());
+        for (Parameter param : projection.getProjectionParameters()) {
+            hasher.putString(param.toString());
+        }
+        hasher.putInt(xCoords.length);
+        for (double x : xCoords) {
+            hasher.putDouble(x);
+        }
+        hasher.putInt(yCoords.length);
+        for (double y : yCoords) {
+            hasher.putDouble(y);
+        }
+        return hasher.hash().toString();
+    }
+
+    private DoubleBuffer[] read(File cached, int size) throws IOException {
+        if (!cached.exists()) {
+            return null;
+        }
+        long expected = 2L * size * DOUBLE_BYTES;
+        RandomAccessFile raf = new RandomAccessFile(cached, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() != expected) {
+                log.warn("Cached coordinates {} have wrong size {}, expected {}", new Object[] {cached, channel.size(), expected});
+                return null;
+            }
+            // the mapping stays valid after the channel is closed
+            DoubleBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, expected).asDoubleBuffer();
+            DoubleBuffer lats = buffer.duplicate();
+            lats.limit(size);
+            buffer.position(size);
+            DoubleBuffer lons = buffer.slice();
+            return new DoubleBuffer[] {lats.slice(), lons};
+        }
+        finally {
+            Closeables.closeQuietly(raf);
+        }
+    }
+
+    private void write(File cached, double[][] latLons) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create cache directory " + cacheDir);
+        }
+        // write aside and rename so concurrent readers never see a partial entry
+        File tmp = File.createTempFile(cached.getName(), ".tmp", cacheDir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            for (double[] values : latLons) {
+                for (double v : values) {
+                    out.writeDouble(v);
+                }
+            }
+            out.close();
+        }
+        finally {
+            Closeables.closeQuietly(out);
+        }
+        if (!tmp.renameTo(cached)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + cached);
+        }
+    }
+}
@@ -1,60 +1,470 @@
 package gov.usgs.cida.data.grib;
 
-import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
+import gov.usgs.cida.ncetl.sis.FileFetcher;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.integration.annotation.Header;
 import org.springframework.integration.annotation.Transformer;
 import org.springframework.transaction.annotation.Transactional;
 
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.time.CalendarDate;
+
 @Transactional
 public class NetCDFArchiver {
 	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private static final int HOURS_PER_DAY = 24;
+	private static final String PARTIAL_SUFFIX = ".part";
+	
+	private boolean fixedTimeDimension = false;
+	private boolean resume = false;
+	private String scratchDir = null;
+	private SchemaCache schemaCache = null;
+	private int batchSize = 24;
+	private long batchMemoryBudget = RollingNetCDFArchive.DEFAULT_BATCH_MEMORY_BUDGET;
+	private int decodeThreads = 1;
+	private int maxFilesInFlight = 0;
+	private ExecutorService decodeExecutor = null;
+	// rebuilds asked for by callers that do not wait for them, one at a time
+	private ExecutorService rebuildExecutor = null;
+	// inputs held in each archive written by processBatch, by output path, until taken by InputMover
+	private final Map<String, List<File>> consumedInputs = new HashMap<String, List<File>>();
+	// one writer per output file, dropped when its last batch is written; writeSlots bounds the
+	// archives written at once, null for no bound
+	private final ConcurrentMap<String, OutputGuard> outputGuards = new ConcurrentHashMap<String, OutputGuard>();
+	private Semaphore writeSlots = null;
+	private long batchWaitMillis = 60L * 60 * 1000;
+
+	/**
+	 * When true, and the year and month of the archive are known, write the
+	 * time dimension as a fixed dimension covering every hour of the month
+	 * rather than as an unlimited record dimension.
+	 */
+	public void setFixedTimeDimension(boolean fixedTimeDimension) {
+		this.fixedTimeDimension = fixedTimeDimension;
+	}
+
+	/**
+	 * When true, an existing output file is appended to rather than rebuilt:
+	 * hours already in its time coordinate are skipped and only new input is
+	 * written.  Archives with a fixed time dimension are always rebuilt.
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Local directory to build archives in before they are published to the
+	 * output directory.  Empty or null writes in place.
+	 */
+	public void setScratchDir(String scratchDir) {
+		this.scratchDir = (scratchDir == null || scratchDir.trim().isEmpty()) ? null : scratchDir.trim();
+	}
+
+	/**
+	 * When true, archives are defined from a schema cached per RFC instead of
+	 * by opening the first input file.  The schema is refreshed when an input
+	 * turns out to be on a different grid.
+	 */
+	public void setUseSchemaCache(boolean useSchemaCache) {
+		this.schemaCache = (useSchemaCache) ? SchemaCache.getDefault() : null;
+	}
+
+	public void setSchemaCache(SchemaCache schemaCache) {
+		this.schemaCache = schemaCache;
+	}
+
+	/**
+	 * Local directory for GRIB index files, so opening the same input again
+	 * does not re-index it.  Empty or null uses the default location.  The
+	 * cache is installed for the whole JVM (see GribIndexCache); without
+	 * this setting, indexes are written beside the data.
+	 */
+	public void setGribIndexDir(String gribIndexDir) {
+		if (gribIndexDir != null && !gribIndexDir.trim().isEmpty()) {
+			GribIndexCache.install(new File(gribIndexDir.trim()));
+		} else {
+			GribIndexCache.installDefault();
+		}
+	}
+
+	/**
+	 * Number of hourly timesteps to buffer before writing them in one go.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Upper bound, in bytes, on the data buffered for a batched write.
+	 */
+	public void setBatchMemoryBudget(long batchMemoryBudget) {
+		this.batchMemoryBudget = batchMemoryBudget;
+	}
+
+	/**
+	 * Number of threads decoding GRIB input while the archive is written.
+	 * With one thread, files are decoded and written one after another.
+	 */
+	public void setDecodeThreads(int decodeThreads) {
+		this.decodeThreads = decodeThreads;
+	}
+
+	/**
+	 * Maximum number of input files decoded but not yet written; defaults to
+	 * twice the number of decode threads.
+	 */
+	public void setMaxFilesInFlight(int maxFilesInFlight) {
+		this.maxFilesInFlight = maxFilesInFlight;
+	}
+
+	/**
+	 * Maximum number of archives written at the same time, whatever the
+	 * number of threads calling processFiles; 0 for no limit.  Two calls for
+	 * the same output file never run at the same time.
+	 */
+	public void setMaxConcurrentWrites(int maxConcurrentWrites) {
+		this.writeSlots = (maxConcurrentWrites > 0) ? new Semaphore(maxConcurrentWrites, true) : null;
+	}
+
+	/**
+	 * How long a sub-batch waits for the one before it to be written before
+	 * it fails, so its month is released again from the start.
+	 */
+	public void setBatchWaitMillis(long batchWaitMillis) {
+		this.batchWaitMillis = batchWaitMillis;
+	}
 
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	private synchronized ExecutorService getDecodeExecutor() {
+		if (decodeExecutor == null) {
+			decodeExecutor = Executors.newFixedThreadPool(decodeThreads, daemonThreads("grib-decode-"));
+		}
+		return decodeExecutor;
+	}
+
+	private synchronized ExecutorService getRebuildExecutor() {
+		if (rebuildExecutor == null) {
+			rebuildExecutor = Executors.newSingleThreadExecutor(daemonThreads("grib-rebuild-"));
+		}
+		return rebuildExecutor;
+	}
+
+	public synchronized void shutdown() {
+		if (decodeExecutor != null) {
+			decodeExecutor.shutdownNow();
+			decodeExecutor = null;
+		}
+		if (rebuildExecutor != null) {
+			rebuildExecutor.shutdownNow();
+			rebuildExecutor = null;
+		}
+	}
+
+	/**
+	 * Write a month from this input.  The inputs consumed are not kept for
+	 * takeConsumed: callers such as backfill do not move them.
+	 */
 	@Transformer
 	public Object processFiles(
 			List<File> input,
 			@Header(value="outputFile", required=true) String filename,
-			@Header(value="config", required=true) ArchiveConfig cfg
+			@Header(value="config", required=true) ArchiveConfigI cfg,
+			@Header(value="year", required=false) Integer year,
+			@Header(value="month", required=false) Integer month
 			) 
 		throws Exception 
 	{
+		return guarded(input, filename, cfg, year, month, resume, null, true, false);
+	}
+	
+	/**
+	 * Write one list released by grib-agg, which may be a sub-batch of a
+	 * month (see FileListAggregator).  Sub-batches of a month are written in
+	 * order, each after the first appending to the archive.  The inputs
+	 * each list consumed are kept for takeConsumed.
+	 */
+	@Transformer
+	public Object processBatch(
+			List<File> input,
+			@Header(value="outputFile", required=true) String filename,
+			@Header(value="config", required=true) ArchiveConfigI cfg,
+			@Header(value="year", required=false) Integer year,
+			@Header(value="month", required=false) Integer month,
+			@Header(value="batchIndex", required=false) Integer batchIndex,
+			@Header(value="lastBatch", required=false) Boolean lastBatch
+			) 
+		throws Exception 
+	{
+		boolean last = lastBatch == null || lastBatch;
+		if (batchIndex == null || batchIndex == 0) {
+			return guarded(input, filename, cfg, year, month, resume, batchIndex, last, true);
+		}
+		if (fixedTimeDimension) {
+			return new ArchiveException(new IllegalStateException(
+					"Sub-batches need a record time dimension, not fixedTimeDimension"), cfg.getRfcCode(), cfg);
+		}
+		return guarded(input, filename, cfg, year, month, true, batchIndex, last, true);
+	}
+	
+	/**
+	 * Write a month from all of its input, replacing any existing archive
+	 * even when resume is set.
+	 */
+	public Object rebuild(List<File> input, String filename, ArchiveConfigI cfg, Integer year, Integer month) 
+		throws Exception 
+	{
+		return guarded(input, filename, cfg, year, month, false, null, true, false);
+	}
+	
+	/**
+	 * Rebuild a month on a thread of the archiver's, for callers such as
+	 * watch mode that must not wait for it.  Rebuilds run one at a time, in
+	 * the order asked for.
+	 * 
+	 * @return the result of rebuild
+	 */
+	public Future<Object> rebuildLater(final List<File> input, final String filename, final ArchiveConfigI cfg, 
+			final Integer year, final Integer month) 
+	{
+		return getRebuildExecutor().submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return rebuild(input, filename, cfg, year, month);
+			}
+		});
+	}
+	
+	/**
+	 * Process with at most one writer per output file, and sub-batches of a
+	 * month in order of their index.  A month's numbering goes on from the
+	 * first index seen for its output, which after a restart is the one
+	 * grib-agg numbered on to rather than 0.  The guard of an output is
+	 * dropped once its last batch is written and nothing waits on it.
+	 * 
+	 * @param last whether this is the last list of the output
+	 * @param collect whether to keep the consumed inputs for takeConsumed
+	 */
+	private Object guarded(List<File> input, String filename, ArchiveConfigI cfg, Integer year, Integer month, 
+			boolean allowResume, Integer batchIndex, boolean last, boolean collect)
+		throws Exception 
+	{
+		String key = new File(cfg.getOutputDir(), filename).getAbsolutePath();
+		OutputGuard guard = lockGuard(key, (batchIndex == null) ? 0 : batchIndex);
+		try {
+			if (batchIndex != null) {
+				if (batchIndex == 0) {
+					guard.nextBatch = 0;
+				}
+				long wait = TimeUnit.MILLISECONDS.toNanos(batchWaitMillis);
+				while (batchIndex > guard.nextBatch) {
+					if (wait <= 0) {
+						logger.warn("Sub-batch {} of {} gave up waiting for {}", new Object[] {batchIndex, key, guard.nextBatch});
+						return new ArchiveException(new TimeoutException("Sub-batch " + batchIndex + " of " + key 
+								+ " waited " + batchWaitMillis + "ms for sub-batch " + guard.nextBatch), cfg.getRfcCode(), cfg);
+					}
+					logger.debug("Sub-batch {} of {} waiting for {}", new Object[] {batchIndex, key, guard.nextBatch});
+					wait = guard.turn.awaitNanos(wait);
+				}
+			}
+			if (writeSlots != null) {
+				writeSlots.acquire();
+			}
+			try {
+				// only a sub-batch is less than the whole month's input
+				return process(input, filename, cfg, year, month, allowResume, batchIndex == null, collect);
+			} finally {
+				if (writeSlots != null) {
+					writeSlots.release();
+				}
+			}
+		} finally {
+			if (batchIndex != null) {
+				// a failed sub-batch still lets the next one go; its files stay unconsumed
+				guard.nextBatch = batchIndex + 1;
+				guard.turn.signalAll();
+			}
+			if (last && !guard.lock.hasQueuedThreads() && !guard.lock.hasWaiters(guard.turn)) {
+				outputGuards.remove(key, guard);
+			}
+			guard.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the guard of an output, locked; a new one numbers its batches from firstBatch
+	 */
+	private OutputGuard lockGuard(String key, int firstBatch) throws InterruptedException {
+		while (true) {
+			OutputGuard guard = outputGuards.get(key);
+			if (guard == null) {
+				OutputGuard created = new OutputGuard(firstBatch);
+				guard = outputGuards.putIfAbsent(key, created);
+				if (guard == null) {
+					guard = created;
+				}
+			}
+			if (guard.lock.isLocked()) {
+				logger.info("Waiting for the write in progress to {}", key);
+			}
+			guard.lock.lockInterruptibly();
+			if (outputGuards.get(key) == guard) {
+				return guard;
+			}
+			// dropped by the last writer while this one waited for it
+			guard.lock.unlock();
+		}
+	}
+	
+	private static class OutputGuard {
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition turn = lock.newCondition();
+		int nextBatch;
+		
+		OutputGuard(int firstBatch) {
+			this.nextBatch = firstBatch;
+		}
+	}
+	
+	/**
+	 * @param wholeMonth whether input is all of the month's input, so the
+	 * archive can be built again from it alone
+	 * @param collect whether to keep the consumed inputs for takeConsumed
+	 */
+	private Object process(List<File> input, String filename, ArchiveConfigI cfg, Integer year, Integer month, 
+			boolean allowResume, boolean wholeMonth, boolean collect)
+		throws Exception 
+	{
 		
     	String outputDir = cfg.getOutputDir();
     	File output = new File(outputDir,filename);
+    	int rfc = cfg.getRfcCode();
+    	boolean resuming = allowResume && !fixedTimeDimension && output.exists();
     	
-    	if (output.exists()) {
+    	// with staging, the archive is built on local disk and published when complete
+    	File work = output;
+    	if (scratchDir != null) {
+    		work = stage(output, resuming);
+    	}
+    	
+    	RollingNetCDFArchive rnca = null;
+    	if (resuming) {
+    		rnca = openForResume(work, cfg);
+    	}
+    	if (rnca == null && work.exists()) {
     		// NetCDF library is not reliable at overwriting existing files.
-    		logger.info("Removing extant output file {}", output);
-    		output.delete();
+    		logger.info("Removing extant output file {}", work);
+    		work.delete();
     	}
-    	int rfc = cfg.getRfcCode();
     	
-    	logger.info("Writing aggregated data for {} to {}", cfg.getName(), output);
+    	logger.info("Writing aggregated data for {} to {}", cfg.getName(), work);
     	
-    	RollingNetCDFArchive rnca = new RollingNetCDFArchive(output);
+    	if (rnca == null) {
+    		rnca = createArchive(work, cfg);
+    	}
     	try { 
-	    	rnca.setExcludeList(RollingNetCDFArchive.DIM, cfg.getDim_excludes());
-	    	rnca.setExcludeList(RollingNetCDFArchive.VAR, cfg.getVar_excludes());
-	    	rnca.setExcludeList(RollingNetCDFArchive.XY, cfg.getXy_excludes());
-	
-	    	rnca.setUnlimitedDimension(cfg.getUnlimitedDim(), cfg.getUnlimitedUnits());
+	    	List<File> toAdd = input;
+	    	if (rnca.isResumed()) {
+	    		toAdd = filesToResume(rnca, input, cfg);
+	    		logger.info("Resuming {}, appending {} of {} input files", new Object[] {output, toAdd.size(), input.size()});
+	    	} else {
+	    		configure(rnca, cfg);
+	    		
+	    		if (fixedTimeDimension) {
+	    			if (year != null && month != null) {
+	    				CalendarDate start = CalendarDate.of(null, year, month, 1, 0, 0, 0);
+	    				int hours = FileFetcher.daysInMonth(year, month) * 24;
+	    				logger.debug("Fixing time dimension at {} hours from {}", hours, start);
+	    				rnca.setFixedTimeRange(start, hours);
+	    			} else {
+	    				logger.warn("No year/month for {}, using unlimited time dimension", filename);
+	    			}
+	    		}
+	    		
+	    		defineArchive(rnca, cfg, input.get(0));
+	    	}
 	    	
-	    	rnca.setGridVariables(cfg.getRenames());
-	    	rnca.setGridMapping("Latitude_Longitude");
+	    	if (decodeThreads > 1) {
+	    		int inFlight = (maxFilesInFlight > 0) ? maxFilesInFlight : 2 * decodeThreads;
+	    		new DecodePipeline(getDecodeExecutor(), inFlight).run(rnca, toAdd);
+	    	} else {
+	    		for (File f : toAdd) {
+	    			rnca.addFile(f);
+	    		}
+	    	}
+	    	rnca.flush();
 	    	
-	    	rnca.define(input.get(0));
+	    	if (work != output) {
+	    		rnca.close();
+	    		publish(work, output);
+	    	}
 	    	
-	    	for (File f : input) {
-	    		rnca.addFile(f);
+	    	if (collect) {
+	    		// files skipped on resume are already in the archive
+	    		List<File> consumed = new ArrayList<File>(input);
+	    		consumed.removeAll(toAdd);
+	    		consumed.addAll(rnca.getConsumed());
+	    		recordConsumed(output, consumed);
 	    	}
-	    	rnca.flush();
 	    	
 	    	return output;
+    	} catch (GridMismatchException x) {
+    		boolean staleCache = rnca.getSchema() != null && schemaCache != null && schemaCache.get(rfc) != null;
+    		if ( ! staleCache && ! (rnca.isResumed() && wholeMonth)) {
+    			// a resumed sub-batch: the hours written by earlier ones are not in input
+    			logger.warn("Problem in NetCDF", x);
+    			return new ArchiveException(x, rfc, cfg);
+    		}
+    		// the grid changed since the schema was cached, or the archive was
+    		// written; start again from the GRIB input, without what was written
+    		logger.info("Grid of {} changed, redefining {}: {}", new Object[] {cfg.getName(), output, x.getMessage()});
+    		rnca.close();
+    		if (schemaCache != null) {
+    			schemaCache.invalidate(rfc);
+    		}
+    		if (work.exists() && !work.delete()) {
+    			logger.warn("Could not remove {}, not redefining", work);
+    			return new ArchiveException(x, rfc, cfg);
+    		}
+    		return process(input, filename, cfg, year, month, false, wholeMonth, collect);
     	} catch (Exception x) {
     		
     		logger.warn("Problem in NetCDF", x);
@@ -62,8 +472,234 @@ public class NetCDFArchiver {
     		return new ArchiveException(x, rfc, cfg);
     		
     	} finally {
-    		rnca.close();
+    		try {
+    			rnca.close();
+    		} catch (IOException x) {
+    			// written archives were flushed above, so this one has already failed
+    			logger.warn("Could not close " + work, x);
+    		}
+    		if (work != output && work.exists()) {
+    			logger.debug("Removing staged file {}", work);
+    			work.delete();
+    		}
     	}
 	}
+	
+	/**
+	 * Input files whose every hour is in an archive written by processBatch:
+	 * those appended, and on resume those already present.  Files
+	 * that had no data or held hours before the end of a resumed archive are
+	 * left out.  The list is handed out once.
+	 * 
+	 * @return the files, or an empty list if there is no record for output
+	 */
+	public List<File> takeConsumed(File output) {
+		synchronized (consumedInputs) {
+			List<File> consumed = consumedInputs.remove(output.getPath());
+			return (consumed == null) ? new ArrayList<File>() : consumed;
+		}
+	}
+	
+	// for testing
+	int guardCount() {
+		return outputGuards.size();
+	}
+	
+	private void recordConsumed(File output, List<File> consumed) {
+		// sub-batches of a month add to what is not yet taken
+		synchronized (consumedInputs) {
+			List<File> prior = consumedInputs.get(output.getPath());
+			if (prior == null) {
+				consumedInputs.put(output.getPath(), consumed);
+			} else {
+				prior.addAll(consumed);
+			}
+		}
+	}
+	
+	/**
+	 * Open the archive of a month to keep appending to it as input arrives.
+	 * An existing archive is resumed; otherwise, or if it cannot be, a new
+	 * one is defined, from prototype if there is no cached schema.  The
+	 * archive is written in place, without staging, and has a record time
+	 * dimension.  The caller appends, flushes and closes it.
+	 */
+	public RollingNetCDFArchive openForAppend(File prototype, String filename, ArchiveConfigI cfg) throws Exception {
+		File output = new File(cfg.getOutputDir(), filename);
+		if (output.exists()) {
+			RollingNetCDFArchive rnca = openForResume(output, cfg);
+			if (rnca != null) {
+				return rnca;
+			}
+			logger.info("Removing extant output file {}", output);
+			output.delete();
+		}
+		RollingNetCDFArchive rnca = createArchive(output, cfg);
+		try {
+			configure(rnca, cfg);
+			defineArchive(rnca, cfg, prototype);
+			// an empty index, so appends track the hours written from here on
+			rnca.resume();
+			return rnca;
+		} catch (Exception x) {
+			rnca.close();
+			throw x;
+		}
+	}
+	
+	/**
+	 * @return the file in the scratch directory to build the archive in,
+	 * holding a copy of the published archive when resuming
+	 */
+	private File stage(File output, boolean resuming) throws IOException {
+		File scratch = new File(scratchDir);
+		FileUtils.forceMkdir(scratch);
+		File work = new File(scratch, output.getName());
+		if (work.exists()) {
+			logger.info("Removing stale staged file {}", work);
+			FileUtils.forceDelete(work);
+		}
+		if (resuming) {
+			logger.debug("Copying {} to {} to resume", output, work);
+			FileUtils.copyFile(output, work);
+		}
+		return work;
+	}
+	
+	/**
+	 * Move a completed archive into place.  It is copied next to the output
+	 * under a hidden name first, so the rename that replaces the output is
+	 * within one file system and readers see either the old file or the
+	 * complete new one.
+	 */
+	private void publish(File work, File output) throws IOException {
+		File partial = new File(output.getParentFile(), "." + output.getName() + PARTIAL_SUFFIX);
+		logger.info("Publishing {} to {}", work, output);
+		FileUtils.copyFile(work, partial);
+		if (!partial.renameTo(output)) {
+			FileUtils.deleteQuietly(partial);
+			throw new IOException("Could not rename " + partial + " to " + output);
+		}
+	}
+	
+	/**
+	 * Define a new archive from the cached schema for its RFC, or from the
+	 * prototype file when there is none, caching the result.
+	 */
+	private void defineArchive(RollingNetCDFArchive rnca, ArchiveConfigI cfg, File prototype) throws Exception {
+		ArchiveSchema schema = (schemaCache != null) ? schemaCache.get(cfg.getRfcCode()) : null;
+		if (schema != null) {
+			rnca.define(schema);
+		} else {
+			rnca.define(prototype);
+			if (schemaCache != null) {
+				schemaCache.put(cfg.getRfcCode(), rnca.getSchema());
+			}
+		}
+	}
+	
+	private void configure(RollingNetCDFArchive rnca, ArchiveConfigI cfg) {
+		rnca.setExcludeList(RollingNetCDFArchive.DIM, cfg.getDim_excludes());
+		rnca.setExcludeList(RollingNetCDFArchive.VAR, cfg.getVar_excludes());
+		rnca.setExcludeList(RollingNetCDFArchive.XY, cfg.getXy_excludes());
+		
+		rnca.setUnlimitedDimension(cfg.getUnlimitedDim(), cfg.getUnlimitedUnits());
+		
+		rnca.setGridVariables(cfg.getRenames());
+		rnca.setGridMapping("Latitude_Longitude");
+		rnca.setWriteBatch(batchSize, batchMemoryBudget);
+	}
+	
+	/**
+	 * Open an existing archive to append to it.
+	 * 
+	 * @return the archive, or null if it cannot be resumed and should be rebuilt
+	 */
+	private RollingNetCDFArchive openForResume(File output, ArchiveConfigI cfg) {
+		RollingNetCDFArchive rnca = null;
+		try {
+			rnca = createArchive(output, cfg);
+			configure(rnca, cfg);
+			if (rnca.resume()) {
+				return rnca;
+			}
+			logger.info("Cannot resume {}, rebuilding", output);
+		} catch (Exception x) {
+			logger.warn("Could not open " + output + " to resume, rebuilding", x);
+		}
+		if (rnca != null) {
+			try {
+				rnca.close();
+			} catch (IOException x) {
+				logger.debug("closing unresumable archive", x);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Drop the input files whose hours are all in the archive already, so
+	 * they are not decoded again.  The hours of a file are those of the date
+	 * in its name (see firstHourOf and hoursOf).  Files whose name gives no
+	 * date are kept; the archive skips any hours it already has.
+	 */
+	private List<File> filesToResume(RollingNetCDFArchive rnca, List<File> input, ArchiveConfigI cfg) {
+		if (cfg.getFileRegex() == null) {
+			return input;
+		}
+		Pattern pat = Pattern.compile(cfg.getFileRegex());
+		List<File> toAdd = new ArrayList<File>(input.size());
+		for (File f : input) {
+			Matcher m = pat.matcher(f.getName());
+			if (m.matches() && m.groupCount() >= 3) {
+				if (rnca.containsTimeRange(firstHourOf(m), hoursOf(m))) {
+					logger.debug("{} already archived", f);
+					continue;
+				}
+			}
+			toAdd.add(f);
+		}
+		return toAdd;
+	}
+	
+	/**
+	 * @param m a match of the config's file regex: year, month and day, and
+	 * the hour if the regex has a fourth group
+	 * @return the first hour the file holds
+	 */
+	static CalendarDate firstHourOf(Matcher m) {
+		int hour = hasHour(m) ? Integer.parseInt(m.group(4)) : 0;
+		return CalendarDate.of(null, 
+				Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)), hour, 0, 0);
+	}
+	
+	/**
+	 * @return the number of hours the file holds: one for an hourly file
+	 * whose name has an hour, the whole day otherwise
+	 */
+	static int hoursOf(Matcher m) {
+		return hasHour(m) ? 1 : HOURS_PER_DAY;
+	}
+	
+	private static boolean hasHour(Matcher m) {
+		return m.groupCount() >= 4 && m.group(4) != null;
+	}
+	
+	/**
+	 * Open the archive in the format configured for this RFC.
+	 */
+	protected RollingNetCDFArchive createArchive(File output, ArchiveConfigI cfg) throws IOException {
+		String version = cfg.getNetcdfVersion();
+		if (version == null || NetcdfFileWriter.Version.netcdf3.name().equalsIgnoreCase(version)) {
+			return new RollingNetCDFArchive(output);
+		}
+		
+		NetcdfFileWriter.Version v = NetcdfFileWriter.Version.valueOf(version.toLowerCase());
+		ArchiveChunking chunking = new ArchiveChunking(
+				ArchiveChunking.parseChunkShape(cfg.getChunking()), cfg.getDeflateLevel());
+		logger.debug("Using {} with chunking {} deflate {} for {}", 
+				new Object[] {v, cfg.getChunking(), cfg.getDeflateLevel(), cfg.getName()});
+		return new RollingNetCDFArchive(output, v, chunking);
+	}
     
 }
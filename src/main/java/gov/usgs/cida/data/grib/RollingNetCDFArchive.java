@@ -8,6 +8,8 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.Flushable;
 import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -20,11 +22,11 @@ import org.slf4j.LoggerFactory;
 import ucar.ma2.*;
 import ucar.nc2.*;
 import ucar.nc2.dataset.CoordinateAxis1DTime;
-import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.dt.GridCoordSystem;
 import ucar.nc2.dt.GridDatatype;
 import ucar.nc2.dt.grid.GridDataset;
 import ucar.nc2.ft.FeatureDataset;
+import ucar.nc2.jni.netcdf.Nc4Chunking;
 import ucar.nc2.time.CalendarDate;
 import ucar.nc2.time.CalendarPeriod;
 
@@ -38,6 +40,17 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
     public static final String VAR = "variable";
     public static final String XY = "xy";
     
+    /**
+     * Global attribute holding the signature of the grid an archive was
+     * defined for, so inputs appended when it is resumed can be checked.
+     */
+    public static final String GRID_SIGNATURE = "ncetl_grid_signature";
+    
+    public static final long DEFAULT_BATCH_MEMORY_BUDGET = 64L * 1024 * 1024;
+    
+    // values of lat or lon copied out of the coordinate cache per write
+    private static final int LAT_LON_BLOCK_POINTS = 1 << 16;
+    
     private static final Logger log = LoggerFactory.getLogger(
             RollingNetCDFArchive.class);
     
@@ -48,12 +61,47 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
     private Map<String, List<String>> excludes;
     private String unlimited;
     private String unlimitedUnits;
+    // parsed from unlimitedUnits; immutable, so shared with decoding threads
+    private CalendarDate originDate;
+    private CalendarPeriod periodOfMeasure;
     private String gridMapping;
     // map this variable to another
     private Map<String, String> gridVariables;
+    // when set, time is a fixed dimension of this length starting at fixedTimeStart
+    private CalendarDate fixedTimeStart;
+    private int fixedTimeLength;
+    private int fixedTimeOrigin;
+    // timesteps buffered per data variable before a single hyperslab write
+    private int batchSize;
+    private long batchMemoryBudget;
+    private Map<String, TimestepBatch> batches;
+    private LatLonCache latLonCache;
+    // what define built the header from; expectedSignature is set when it came from a cache, or from the file on resume
+    private ArchiveSchema schema;
+    private String expectedSignature;
+    // time values in an archive being resumed, sorted, including those appended since; null when not resuming
+    private int[] existingTimes;
+    private int existingCount;
+    private int lastTime;
+    // reused by every unbatched timestep write, from the appending thread only
+    private final int[] writeOrigin = new int[3];
+    private final int[] timeWriteOrigin = new int[1];
+    private final ArrayInt.D1 timeWriteValue = new ArrayInt.D1(1);
+    private int[] timestepShape = new int[] {1, 0, 0};
+    // input files every hour of which has been appended
+    private final List<File> consumed = Lists.newArrayList();
 
     // should be able to open existing file here
     public RollingNetCDFArchive(File rollingFile) throws IOException {
+        this(rollingFile, NetcdfFileWriter.Version.netcdf3, null);
+    }
+    
+    /**
+     * @param rollingFile archive file, opened if it already exists
+     * @param version file format to use when creating a new file
+     * @param chunking chunking and compression for netcdf4 output, may be null
+     */
+    public RollingNetCDFArchive(File rollingFile, NetcdfFileWriter.Version version, Nc4Chunking chunking) throws IOException {
         String fileAsString = rollingFile.getAbsolutePath();
         if (rollingFile.exists() && rollingFile.canWrite()) {
             netcdf = NetcdfFileWriter.openExisting(fileAsString);
@@ -63,17 +111,27 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
             crs = GribUtils.getCRSFromDatatype(gdt);
         }
         else {
-            netcdf = NetcdfFileWriter.createNew(
-                    NetcdfFileWriter.Version.netcdf3, fileAsString);
+            netcdf = NetcdfFileWriter.createNew(version, fileAsString, chunking);
             gridDs = null;
             crs = null;
             gdt = null;
         }
+        schema = null;
+        expectedSignature = null;
         excludes = Maps.newHashMap();
         gridVariables = null;
-        unlimited = "time";
-        unlimitedUnits = "hours since 2000-01-01 00:00:00";
+        setUnlimitedDimension("time", "hours since 2000-01-01 00:00:00");
         gridMapping = "Latitude_Longitude";
+        fixedTimeStart = null;
+        fixedTimeLength = 0;
+        fixedTimeOrigin = 0;
+        batchSize = 1;
+        batchMemoryBudget = DEFAULT_BATCH_MEMORY_BUDGET;
+        batches = Maps.newHashMap();
+        latLonCache = LatLonCache.getDefault();
+        existingTimes = null;
+        existingCount = 0;
+        lastTime = Integer.MIN_VALUE;
     }
     
     public void setExcludeList(String key, List<String> excludes) {
@@ -83,6 +141,55 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
     public void setUnlimitedDimension(String dimName, String units) {
         this.unlimited = dimName;
         this.unlimitedUnits = units;
+        this.originDate = CalendarDate.parseUdunits(null, "0 " + units);
+        this.periodOfMeasure = CalendarPeriod.of(1, 
+            CalendarPeriod.fromUnitString(units.split(" ")[0]));
+    }
+    
+    /**
+     * @return value of date on the time coordinate, in the unlimited units
+     */
+    int timeValueOf(CalendarDate date) {
+        return periodOfMeasure.subtract(originDate, date);
+    }
+    
+    /**
+     * Write the time dimension as a fixed (non-record) dimension instead of
+     * an unlimited one, so the data variable is laid out contiguously.
+     * The time coordinate is filled in for the whole range at define time and
+     * each timestep is written at its offset from start; missing timesteps are
+     * left as fill values.
+     * 
+     * @param start first time step of the archive (e.g. start of the month)
+     * @param length number of time steps, in units of the unlimited units
+     */
+    public void setFixedTimeRange(CalendarDate start, int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Fixed time length must be positive, got " + length);
+        }
+        this.fixedTimeStart = start;
+        this.fixedTimeLength = length;
+    }
+    
+    public boolean isFixedTime() {
+        return fixedTimeStart != null;
+    }
+    
+    /**
+     * Buffer up to batchSize consecutive timesteps per data variable and
+     * write them together, as long as the buffer fits in memoryBudget bytes.
+     * A batch size of one writes each timestep as it is read.
+     */
+    public void setWriteBatch(int batchSize, long memoryBudget) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        this.batchSize = batchSize;
+        this.batchMemoryBudget = memoryBudget;
+    }
+    
+    public void setLatLonCache(LatLonCache latLonCache) {
+        this.latLonCache = latLonCache;
     }
     
     public void setGridMapping(String gridMappingName) {
@@ -101,34 +208,60 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
         gridDs = GribUtils.getGridDatasetFromFeatureDataset(featureDataset);
         gdt = GribUtils.getDatatypeFromDataset(gridDs);
         crs = GribUtils.getCRSFromDatatype(gdt);
-        
-        NetcdfDataset srcNc = gridDs.getNetcdfDataset();
-        
-        Dimension unlimitedDim = null;
+        schema = ArchiveSchema.from(gridDs, gdt);
+        defineFrom(schema);
+    }
+    
+    /**
+     * Define the archive from a schema saved from an earlier prototype,
+     * without opening any GRIB file.  Inputs decoded afterwards must be on
+     * the same grid as the schema, or decode throws GridMismatchException.
+     */
+    public void define(ArchiveSchema cachedSchema) throws IOException, InvalidRangeException {
+        if (!netcdf.isDefineMode()) {
+            throw new IllegalStateException("Cannot call define on an already defined dataset");
+        }
+        schema = cachedSchema;
+        expectedSignature = cachedSchema.getGridSignature();
+        defineFrom(cachedSchema);
+    }
+    
+    /**
+     * @return the schema this archive was defined from, or null if it was opened from an existing file
+     */
+    public ArchiveSchema getSchema() {
+        return schema;
+    }
+    
+    private void defineFrom(ArchiveSchema schema) throws IOException, InvalidRangeException {
+        boolean hasUnlimited = false;
         List<String> dimExcludes = excludes.get(DIM);
         if (dimExcludes == null) {
         	dimExcludes = Collections.emptyList();
         }
-        for (Dimension dim : srcNc.getDimensions()) {
-            if (unlimited.equals(dim.getName())) {
-            	log.debug("Unlimited is {}", dim.makeFullName());
-            	if (unlimitedDim != null) {
-            		log.warn("Replacing unlimited {} with {}", unlimitedDim.makeFullName(), dim.makeFullName());
-            	}
-                unlimitedDim = dim;
+        for (ArchiveSchema.Dim dim : schema.getDimensions()) {
+            if (unlimited.equals(dim.name)) {
+            	log.debug("Unlimited is {}", dim.name);
+                hasUnlimited = true;
             }
-            else if (dimExcludes.contains(dim.getName())) {
-            	log.debug("excluding {}", dim.makeFullName());
+            else if (dimExcludes.contains(dim.name)) {
+            	log.debug("excluding {}", dim.name);
                 // hold this one out
             }
             else {
-            	log.debug("addimg dim {} len {}", dim.makeFullName(), dim.getLength());
-                netcdf.addDimension(null, dim.getName(), dim.getLength());
+            	log.debug("addimg dim {} len {}", dim.name, dim.length);
+                netcdf.addDimension(null, dim.name, dim.length);
             }
         }
-        if (unlimitedDim != null) {
-        	log.debug("defaulting unlimited to {}", unlimited);
-            netcdf.addUnlimitedDimension(unlimited);
+        if (hasUnlimited) {
+            if (isFixedTime()) {
+                log.debug("fixing {} at length {}", unlimited, fixedTimeLength);
+                netcdf.addDimension(null, unlimited, fixedTimeLength);
+            }
+            else {
+                log.debug("defaulting unlimited to {}", unlimited);
+                netcdf.addUnlimitedDimension(unlimited);
+            }
         }
         
         Variable latVar = null;
@@ -158,23 +291,23 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
         
         // hack to map bad variable to good one
         boolean addedDataVar = false;
-        Variable mappedVariable = null;
-        for (Variable var : srcNc.getVariables()) {
-            if (varExcludes.contains(var.getFullName())) {
+        ArchiveSchema.Var mappedVariable = null;
+        for (ArchiveSchema.Var var : schema.getVariables()) {
+            if (varExcludes.contains(var.name)) {
                 // hold this var out
-                if (gridVariables.containsKey(var.getFullName())) {
+                if (gridVariables.containsKey(var.name)) {
                     mappedVariable = var;
                 }
             }
             else {
-                Variable newVar = netcdf.addVariable(null, var.getFullName(), var.getDataType(), var.getDimensionsString());
+                Variable newVar = netcdf.addVariable(null, var.name, var.getDataType(), var.dimensions);
 
                 for (Attribute varAttr : var.getAttributes()) {
                     netcdf.addVariableAttribute(newVar, varAttr);
                 }
                 // again this will pretty much just work for this case
                 // adding a standard name is not a bad idea // REFACTOR
-                if (unlimited.equals(var.getFullName())) {
+                if (unlimited.equals(var.name)) {
                     netcdf.addVariableAttribute(newVar, new Attribute("units", unlimitedUnits));
                 }
                 else {
@@ -186,8 +319,8 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
         }
         
         if (!addedDataVar && mappedVariable != null) {
-            String target = gridVariables.get(mappedVariable.getFullName());
-            Variable newVar = netcdf.addVariable(null, target, mappedVariable.getDataType(), mappedVariable.getDimensionsString());
+            String target = gridVariables.get(mappedVariable.name);
+            Variable newVar = netcdf.addVariable(null, target, mappedVariable.getDataType(), mappedVariable.dimensions);
             for (Attribute varAttr : mappedVariable.getAttributes()) {
                 netcdf.addVariableAttribute(newVar, varAttr);
             }
@@ -195,66 +328,193 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
             netcdf.addVariableAttribute(newVar, new Attribute("coordinates", "lon lat"));
         }
         
-        for (Attribute attr : srcNc.getGlobalAttributes()) {
+        for (Attribute attr : schema.getGlobalAttributes()) {
             netcdf.addGroupAttribute(null, attr);
         }
         netcdf.addGroupAttribute(null, new Attribute("Conventions", "CF-1.6"));
+        if (schema.getGridSignature() != null) {
+            netcdf.addGroupAttribute(null, new Attribute(GRID_SIGNATURE, schema.getGridSignature()));
+        }
         
         netcdf.create();
         writeLatsAndLons(latVar, lonVar);
+        if (isFixedTime()) {
+            writeFixedTimes();
+        }
     }
     
-    private void writeLatsAndLons(Variable latVar, Variable lonVar) throws FactoryException, TransformException, IOException, InvalidRangeException {
+    /**
+     * Prepare to append to an archive opened from an existing file, or to
+     * one just defined.  The time coordinate already written is read into an
+     * index, and timesteps that are already present, or that would fall
+     * before the last one, are skipped by later appends.  Input decoded for
+     * an existing file must be on the grid recorded in it, or decode throws
+     * GridMismatchException.
+     * 
+     * @return false if there is nothing to resume: the file is still being
+     * defined, or its time is not a record dimension, so written hours
+     * cannot be told apart
+     */
+    public boolean resume() throws IOException {
+        if (netcdf.isDefineMode()) {
+            return false;
+        }
         checkDefined();
-        double[] xCoords = GribUtils.getXCoords(gridDs);
-        double[] yCoords = GribUtils.getYCoords(gridDs);
-        double[][] latLonPairs = GribUtils.transformToLatLonNetCDFStyle(xCoords, yCoords, gdt);
-        ArrayDouble.D2 dataLat = new ArrayDouble.D2(yCoords.length, xCoords.length);
-        ArrayDouble.D2 dataLon = new ArrayDouble.D2(yCoords.length, xCoords.length);
-        int yIndex = 0;
-        int xIndex = 0;
-        for (int i=0; i<latLonPairs[0].length; i++) {
-            double lat = latLonPairs[0][i];
-            double lon = latLonPairs[1][i];
-            dataLat.set(yIndex, xIndex, lat);
-            dataLon.set(yIndex, xIndex, lon);
-            if (++xIndex % xCoords.length == 0) {
-                xIndex = 0;
-                yIndex++;
+        Variable timeVar = netcdf.findVariable(unlimited);
+        if (timeVar == null || !timeVar.isUnlimited()) {
+            log.info("archive has no record dimension {}, cannot resume", unlimited);
+            return false;
+        }
+        Array times = timeVar.read();
+        int[] values = new int[(int) times.getSize()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = times.getInt(i);
+        }
+        Arrays.sort(values);
+        if (schema == null) {
+            // opened from an existing file: appends must be on the grid it was written for
+            Attribute signature = netcdf.getNetcdfFile().findGlobalAttribute(GRID_SIGNATURE);
+            if (signature != null) {
+                expectedSignature = signature.getStringValue();
+            } else {
+                log.info("archive has no {}, grids of appended input are not checked", GRID_SIGNATURE);
+            }
+        }
+        existingTimes = values;
+        existingCount = values.length;
+        lastTime = (values.length > 0) ? values[values.length - 1] : Integer.MIN_VALUE;
+        log.debug("resuming with {} existing timesteps", values.length);
+        return true;
+    }
+    
+    public boolean isResumed() {
+        return existingTimes != null;
+    }
+    
+    /**
+     * @return true if every step from start for count periods is already in
+     * the archive being resumed
+     */
+    public boolean containsTimeRange(CalendarDate start, int count) {
+        if (existingTimes == null) {
+            return false;
+        }
+        int first = timeValueOf(start);
+        for (int t=first; t<first + count; t++) {
+            if (!containsTime(t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private boolean containsTime(int timeValue) {
+        return Arrays.binarySearch(existingTimes, 0, existingCount, timeValue) >= 0;
+    }
+    
+    /**
+     * @return true if appending would write every new timestep of decoded,
+     * false if some are earlier than the end of the archive being resumed
+     * and would be skipped
+     */
+    public boolean isInOrder(DecodedFile decoded) {
+        if (!isResumed()) {
+            return true;
+        }
+        for (DecodedFile.Grid grid : decoded.getGrids()) {
+            for (int i=0; i<grid.size(); i++) {
+                int timeValue = grid.getTimeValue(i);
+                if (timeValue <= lastTime && !containsTime(timeValue)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Add appended time values to the index of a resumed archive.
+     */
+    private void recordAppended(int[] times, int count) {
+        Arrays.sort(times, 0, count);
+        for (int i=0; i<count; i++) {
+            if (times[i] > lastTime) {
+                if (existingCount == existingTimes.length) {
+                    existingTimes = Arrays.copyOf(existingTimes, Math.max(2 * existingCount, 32));
+                }
+                existingTimes[existingCount++] = times[i];
+                lastTime = times[i];
             }
         }
-        netcdf.write(latVar, dataLat);
-        netcdf.write(lonVar, dataLon);
+    }
+    
+    private void writeFixedTimes() throws IOException, InvalidRangeException {
+        fixedTimeOrigin = timeValueOf(fixedTimeStart);
+        
+        ArrayInt.D1 timeArray = new ArrayInt.D1(fixedTimeLength);
+        for (int i=0; i<fixedTimeLength; i++) {
+            timeArray.set(i, fixedTimeOrigin + i);
+        }
+        netcdf.write(netcdf.findVariable(unlimited), timeArray);
+    }
+    
+    private void writeLatsAndLons(Variable latVar, Variable lonVar) throws IOException, InvalidRangeException {
+        checkDefined();
+        DoubleBuffer[] latLons = schema.getLatLons(latLonCache);
+        writeRows(latVar, latLons[0]);
+        writeRows(lonVar, latLons[1]);
+    }
+
+    /**
+     * Write a y-major grid of values a block of rows at a time, so only one
+     * block is copied onto the heap.
+     */
+    private void writeRows(Variable var, DoubleBuffer values) throws IOException, InvalidRangeException {
+        int nx = schema.getXCoords().length;
+        int ny = schema.getYCoords().length;
+        int rows = Math.max(1, Math.min(ny, LAT_LON_BLOCK_POINTS / nx));
+        for (int y = 0; y < ny; y += rows) {
+            int n = Math.min(rows, ny - y);
+            double[] block = new double[n * nx];
+            values.get(block);
+            netcdf.write(var, new int[] {y, 0}, Array.factory(DataType.DOUBLE, new int[] {n, nx}, block));
+        }
     }
     
     
     private void checkDefined() {
-        if (netcdf == null || gridDs == null || crs == null || gdt == null) {
+        if (netcdf == null || (schema == null && (gridDs == null || crs == null || gdt == null))) {
             throw new UnsupportedOperationException("Must define prototype before continuing");
         }
     }
+    
+    private void checkPrototype() {
+        if (netcdf == null || gridDs == null || crs == null || gdt == null) {
+            throw new UnsupportedOperationException("Must define from a prototype file before continuing");
+        }
+    }
 
     public GridDataset getDataset() {
-        checkDefined();
+        checkPrototype();
         return gridDs;
     }
 
     public CoordinateReferenceSystem getCRS() {
-        checkDefined();
+        checkPrototype();
         return crs;
     }
     
     // pkg protected now for testing
     double[] getXCoords() {
-        checkDefined();
+        checkPrototype();
         return GribUtils.getXCoords(gridDs);
     }
     double[] getYCoords() {
-        checkDefined();
+        checkPrototype();
         return GribUtils.getYCoords(gridDs);
     }
     double[][] transform() {
-        checkDefined();
+        checkPrototype();
         return GribUtils.transformToLatLonNetCDFStyle(getXCoords(), getYCoords(), gdt);
     }
     
@@ -280,21 +540,28 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
 //    }
 
     public void addFile(File gribOrSomething) throws IOException, InvalidRangeException, Exception {
+        append(decode(gribOrSomething));
+    }
+    
+    /**
+     * Read the timesteps to be archived from one input file.  This does not
+     * touch the output file, so several files can be decoded at once as long
+     * as the results are appended in time order.
+     */
+    public DecodedFile decode(File gribOrSomething) throws IOException {
         // make GridDataset out of it
         checkDefined();
-        // we want to make sure file is not finished (can be out of define mode though)
-//        if (!netcdf.isDefineMode()) {
-//            throw new UnsupportedOperationException("Cannot add to file which is already finished");
-//        }
-        int unlimitedLength = netcdf.findVariable(unlimited).getShape(0);
-        
-        CalendarDate originDate = CalendarDate.parseUdunits(null, "0 " + unlimitedUnits);
-        CalendarPeriod periodOfMeasure = CalendarPeriod.of(1, 
-            CalendarPeriod.fromUnitString(unlimitedUnits.split(" ")[0]));
+        DecodedFile decoded = new DecodedFile(gribOrSomething);
         FeatureDataset fd = GribUtils.getFeatureDatasetFromFile(gribOrSomething);
         GridDataset dataset = null;
         try {
             dataset = GribUtils.getGridDatasetFromFeatureDataset(fd);
+            if (expectedSignature != null) {
+                String signature = ArchiveSchema.gridSignature(dataset);
+                if (!expectedSignature.equals(signature)) {
+                    throw new GridMismatchException(gribOrSomething, expectedSignature, signature);
+                }
+            }
             for (String varname : gridVariables.keySet()) {
                 GridDatatype grid = dataset.findGridDatatype(varname);
                 if (grid == null) {
@@ -307,8 +574,8 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
                 CoordinateAxis1DTime appendingTimeAxis = gcs.getTimeAxis1D();
                 double[] bound1 = appendingTimeAxis.getBound1();
                 double[] bound2 = appendingTimeAxis.getBound2();
-                int[] origins = new int[3];
-                int writeIndex = 0;
+                DecodedFile.Grid decodedGrid = decoded.addGrid(gridVariables.get(varname),
+                        appendingTimeAxis.getFullName(), yAxisLength, xAxisLength, (int) appendingTimeAxis.getSize());
                 for (int readIndex = 0; readIndex<appendingTimeAxis.getSize(); readIndex++) {
                     if (bound1 != null && bound1.length > readIndex &&
                         bound2 != null && bound2.length > readIndex) {
@@ -319,32 +586,165 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
                         }
                     }
                     
-                    origins[0] = writeIndex + unlimitedLength;
                     CalendarDate calDate = appendingTimeAxis.getCalendarDate(readIndex);
-                    int timeValue = periodOfMeasure.subtract(originDate, calDate);
-
-                    ArrayInt.D1 timeArray = new ArrayInt.D1(1);
-                    timeArray.set(0, timeValue);
-                    
-                    ArrayFloat.D3 dataArray = new ArrayFloat.D3(1, yAxisLength, xAxisLength);
-                    ArrayFloat.D2 slice = (ArrayFloat.D2)grid.readDataSlice(readIndex, -1, -1, -1);
-
-                    for (int y=0; y<yAxisLength; y++) {
-                        for (int x=0; x<xAxisLength; x++) {
-                            dataArray.set(0, y, x, slice.get(y, x));
+                    int timeValue = timeValueOf(calDate);
+                    if (isFixedTime()) {
+                        int timeIndex = timeValue - fixedTimeOrigin;
+                        if (timeIndex < 0 || timeIndex >= fixedTimeLength) {
+                            log.warn("time {} from {} is outside of fixed time range, skipping", calDate, gribOrSomething);
+                            continue;
                         }
                     }
-
-                    netcdf.write(netcdf.findVariable(gridVariables.get(varname)), origins, dataArray);
-                    netcdf.write(netcdf.findVariable(unlimited), new int[]{writeIndex + unlimitedLength}, timeArray);
-                    writeIndex++;
+                    
+                    Array slice = grid.readDataSlice(readIndex, -1, -1, -1);
+                    decodedGrid.add(timeValue, slice);
                 }
-                log.debug("squished variable {} along {} from {}", new Object[] {varname, appendingTimeAxis.getFullName(), gribOrSomething});
             }
         }
         finally {
-            dataset.close();
+            if (dataset != null) {
+                dataset.close();
+            }
+        }
+        return decoded;
+    }
+    
+    /**
+     * Write the timesteps of a decoded file to the archive.  Must be called
+     * from one thread, in time order.
+     */
+    public void append(DecodedFile decoded) throws IOException, InvalidRangeException {
+        checkDefined();
+        // we want to make sure file is not finished (can be out of define mode though)
+//        if (!netcdf.isDefineMode()) {
+//            throw new UnsupportedOperationException("Cannot add to file which is already finished");
+//        }
+        Variable timeVar = netcdf.findVariable(unlimited);
+        int unlimitedLength = recordCount(timeVar);
+        int[] appended = (isResumed()) ? new int[decoded.size()] : null;
+        int appendedCount = 0;
+        boolean skippedLate = false;
+        
+        for (DecodedFile.Grid decodedGrid : decoded.getGrids()) {
+            int yAxisLength = decodedGrid.getYLength();
+            int xAxisLength = decodedGrid.getXLength();
+            Variable dataVar = netcdf.findVariable(decodedGrid.getTarget());
+            TimestepBatch batch = batchFor(dataVar, timeVar, yAxisLength, xAxisLength);
+            int writeIndex = 0;
+            for (int readIndex = 0; readIndex < decodedGrid.size(); readIndex++) {
+                int timeValue = decodedGrid.getTimeValue(readIndex);
+                if (isResumed()) {
+                    if (containsTime(timeValue)) {
+                        continue;
+                    }
+                    if (timeValue <= lastTime) {
+                        log.warn("time {} from {} is before the end of the archive, skipping", timeValue, decoded.getSource());
+                        skippedLate = true;
+                        continue;
+                    }
+                    appended[appendedCount++] = timeValue;
+                }
+                int timeIndex;
+                if (isFixedTime()) {
+                    timeIndex = timeValue - fixedTimeOrigin;
+                }
+                else {
+                    timeIndex = writeIndex + unlimitedLength;
+                }
+                
+                Array slice = decodedGrid.getSlice(readIndex);
+                if (batch == null) {
+                    writeTimestep(dataVar, timeVar, timeIndex, timeValue, slice, yAxisLength, xAxisLength);
+                }
+                else {
+                    if (!batch.accepts(timeIndex)) {
+                        batch.flush(netcdf);
+                    }
+                    batch.add(timeIndex, timeValue, slice);
+                }
+                writeIndex++;
+            }
+            log.debug("squished variable {} along {} from {}", new Object[] {decodedGrid.getTarget(), decodedGrid.getTimeAxisName(), decoded.getSource()});
+        }
+        if (appended != null) {
+            recordAppended(appended, appendedCount);
+        }
+        if (decoded.size() > 0 && !skippedLate) {
+            consumed.add(decoded.getSource());
+        }
+    }
+    
+    /**
+     * @return input files appended so far that had data and none of whose
+     * hours were skipped as late, in the order appended
+     */
+    public List<File> getConsumed() {
+        return Collections.unmodifiableList(consumed);
+    }
+    
+    private void writeTimestep(Variable dataVar, Variable timeVar, int timeIndex, int timeValue,
+            Array slice, int ny, int nx) throws IOException, InvalidRangeException {
+        if (timestepShape[1] != ny || timestepShape[2] != nx) {
+            timestepShape = new int[] {1, ny, nx};
+        }
+        writeOrigin[0] = timeIndex;
+        timeWriteOrigin[0] = timeIndex;
+        timeWriteValue.set(0, timeValue);
+        netcdf.write(dataVar, writeOrigin, asTimestep(slice, timestepShape));
+        netcdf.write(timeVar, timeWriteOrigin, timeWriteValue);
+    }
+    
+    /**
+     * Number of records written so far, counting any still held in a batch.
+     */
+    private int recordCount(Variable timeVar) {
+        int length = timeVar.getShape(0);
+        for (TimestepBatch batch : batches.values()) {
+            length = Math.max(length, batch.end());
         }
+        return length;
+    }
+    
+    /**
+     * @return the batch for this variable, or null if timesteps should be written directly
+     */
+    private TimestepBatch batchFor(Variable dataVar, Variable timeVar, int ny, int nx) throws IOException {
+        long sliceBytes = (long) ny * nx * dataVar.getElementSize();
+        int capacity = TimestepBatch.capacityFor(batchSize, batchMemoryBudget, sliceBytes);
+        if (capacity <= 1) {
+            return null;
+        }
+        String name = dataVar.getFullName();
+        TimestepBatch batch = batches.get(name);
+        if (batch == null || !batch.matches(dataVar, ny, nx)) {
+            if (batch != null) {
+                batch.flush(netcdf);
+            }
+            batch = new TimestepBatch(dataVar, timeVar, capacity, ny, nx);
+            batches.put(name, batch);
+        }
+        return batch;
+    }
+    
+    private void flushBatches() throws IOException {
+        for (TimestepBatch batch : batches.values()) {
+            batch.flush(netcdf);
+        }
+    }
+    
+    /**
+     * View a 2D (y, x) slice as a single (1, y, x) timestep for writing.
+     * When the slice is backed by contiguous storage in canonical order (as
+     * slices from the GRIB reader are), the view shares that storage and no
+     * element is copied; otherwise the slice is copied once in bulk.
+     * 
+     * @param slice 2D data slice
+     * @param timestepShape {1, y, x}
+     * @return array of shape timestepShape holding the slice values
+     */
+    static Array asTimestep(Array slice, int[] timestepShape) {
+        Object storage = slice.get1DJavaArray(slice.getElementType());
+        return Array.factory(slice.getDataType(), timestepShape, storage);
     }
     
     public void finish() throws IOException {
@@ -360,19 +760,33 @@ public class RollingNetCDFArchive implements Closeable, Flushable {
     
     @Override
     public void flush() throws IOException {
+        flushBatches();
         netcdf.flush();
     }
     
+    /**
+     * Write any buffered timesteps and close the file.  The file is closed
+     * even when the buffered timesteps cannot be written, and the failure is
+     * then thrown, since the archive is missing those hours.
+     */
     @Override
     public void close() throws IOException {
-        try {
-            netcdf.close();
+        if (netcdf == null) {
+            return;
         }
-        catch (Exception e) {
-            // couldn't close
+        try {
+            flushBatches();
         }
         finally {
-            netcdf = null;
+            try {
+                netcdf.close();
+            }
+            catch (Exception e) {
+                // couldn't close
+            }
+            finally {
+                netcdf = null;
+            }
         }
     }
 }
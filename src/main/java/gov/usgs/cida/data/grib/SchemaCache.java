@@ -0,0 +1,111 @@
+package gov.usgs.cida.data.grib;
+
+import com.google.common.io.Closeables;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Archive schemas kept on disk, one per RFC, so archives can be defined
+ * without opening a GRIB prototype.  An entry that cannot be read is treated
+ * as missing.
+ *
+ * The directory defaults to ~/.ncetl/schema and can be changed with the
+ * system property ncetl.schema.cache.
+ */
+public class SchemaCache {
+
+    public static final String CACHE_DIR_PROPERTY = "ncetl.schema.cache";
+    private static final String SUFFIX = ".schema";
+
+    private static final Logger log = LoggerFactory.getLogger(SchemaCache.class);
+
+    private static SchemaCache defaultCache = null;
+
+    private final File cacheDir;
+
+    public SchemaCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public static synchronized SchemaCache getDefault() {
+        if (defaultCache == null) {
+            String dir = System.getProperty(CACHE_DIR_PROPERTY,
+                    System.getProperty("user.home") + File.separator + ".ncetl" + File.separator + "schema");
+            defaultCache = new SchemaCache(new File(dir));
+        }
+        return defaultCache;
+    }
+
+    /**
+     * @return the schema for this RFC, or null if there is none
+     */
+    public ArchiveSchema get(int rfc) {
+        File cached = fileFor(rfc);
+        if (!cached.exists()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(cached)));
+            ArchiveSchema schema = (ArchiveSchema) in.readObject();
+            log.debug("using cached schema {}", cached);
+            return schema;
+        }
+        catch (Exception e) {
+            log.warn("Could not read cached schema " + cached, e);
+            return null;
+        }
+        finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    public void put(int rfc, ArchiveSchema schema) {
+        File cached = fileFor(rfc);
+        try {
+            write(cached, schema);
+        }
+        catch (IOException e) {
+            log.warn("Could not cache schema to " + cached, e);
+        }
+    }
+
+    public void invalidate(int rfc) {
+        File cached = fileFor(rfc);
+        if (cached.exists() && !cached.delete()) {
+            log.warn("Could not remove cached schema {}", cached);
+        }
+    }
+
+    private File fileFor(int rfc) {
+        return new File(cacheDir, rfc + SUFFIX);
+    }
+
+    private void write(File cached, ArchiveSchema schema) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create cache directory " + cacheDir);
+        }
+        // write aside and rename so concurrent readers never see a partial entry
+        File tmp = File.createTempFile(cached.getName(), ".tmp", cacheDir);
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeObject(schema);
+            out.close();
+        }
+        finally {
+            Closeables.closeQuietly(out);
+        }
+        if (!tmp.renameTo(cached)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + cached);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package gov.usgs.cida.data.grib;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.Array;
+import ucar.ma2.ArrayInt;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+
+/**
+ * Buffers consecutive (y, x) timesteps of one data variable so they can be
+ * written with a single hyperslab write for the data and a single write for
+ * the time coordinate.
+ *
+ * Only runs of consecutive time indices are batched; the caller flushes
+ * when the next index does not follow on from the buffered ones.
+ */
+class TimestepBatch {
+
+    private static final Logger log = LoggerFactory.getLogger(TimestepBatch.class);
+
+    private final Variable dataVar;
+    private final Variable timeVar;
+    private final int capacity;
+    private final int ny;
+    private final int nx;
+    private final int sliceSize;
+    private final Array data;
+    private final Object dataStorage;
+    private final ArrayInt.D1 times;
+    private int first;
+    private int count;
+
+    /**
+     * Work out how many timesteps to buffer.
+     *
+     * @param batchSize requested number of timesteps
+     * @param memoryBudget maximum bytes to hold in the data buffer
+     * @param sliceBytes bytes in one (y, x) timestep
+     * @return number of timesteps, at least one
+     */
+    static int capacityFor(int batchSize, long memoryBudget, long sliceBytes) {
+        long byBudget = (sliceBytes > 0) ? memoryBudget / sliceBytes : batchSize;
+        return (int) Math.max(1, Math.min(batchSize, byBudget));
+    }
+
+    TimestepBatch(Variable dataVar, Variable timeVar, int capacity, int ny, int nx) {
+        this.dataVar = dataVar;
+        this.timeVar = timeVar;
+        this.capacity = capacity;
+        this.ny = ny;
+        this.nx = nx;
+        this.sliceSize = ny * nx;
+        DataType dataType = dataVar.getDataType();
+        this.data = Array.factory(dataType, new int[] {capacity, ny, nx});
+        this.dataStorage = data.getStorage();
+        this.times = new ArrayInt.D1(capacity);
+        this.first = 0;
+        this.count = 0;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    /**
+     * @return true if timeIndex can be appended to this batch without a flush
+     */
+    boolean accepts(int timeIndex) {
+        return isEmpty() || (!isFull() && timeIndex == first + count);
+    }
+
+    /**
+     * @return the time index one past the last buffered timestep
+     */
+    int end() {
+        return first + count;
+    }
+
+    boolean matches(Variable var, int ny, int nx) {
+        return dataVar == var && this.ny == ny && this.nx == nx;
+    }
+
+    void add(int timeIndex, int timeValue, Array slice) {
+        if (!accepts(timeIndex)) {
+            throw new IllegalStateException("Time index " + timeIndex + " does not follow batch ending at " + end());
+        }
+        if (isEmpty()) {
+            first = timeIndex;
+        }
+        Object sliceStorage = slice.get1DJavaArray(slice.getElementType());
+        System.arraycopy(sliceStorage, 0, dataStorage, count * sliceSize, sliceSize);
+        times.set(count, timeValue);
+        count++;
+    }
+
+    /**
+     * Write the buffered timesteps.  The batch is only emptied once they are
+     * written, so after a failure they are still held and can be written
+     * again or reported.
+     */
+    void flush(NetcdfFileWriter netcdf) throws IOException {
+        if (isEmpty()) {
+            return;
+        }
+        try {
+            Array dataOut = data;
+            Array timesOut = times;
+            if (!isFull()) {
+                dataOut = data.sectionNoReduce(new int[] {0, 0, 0}, new int[] {count, ny, nx}, null);
+                timesOut = times.sectionNoReduce(new int[] {0}, new int[] {count}, null);
+            }
+            netcdf.write(dataVar, new int[] {first, 0, 0}, dataOut);
+            netcdf.write(timeVar, new int[] {first}, timesOut);
+            log.trace("wrote {} timesteps of {} at {}", new Object[] {count, dataVar.getFullName(), first});
+        }
+        catch (InvalidRangeException e) {
+            throw new IOException("Could not write batch of " + count + " at " + first + " to " + dataVar.getFullName(), e);
+        }
+        count = 0;
+    }
+}
@@ -1,6 +1,12 @@
 package gov.usgs.cida.ncetl;
 
+import gov.usgs.cida.ncetl.sis.Backfill;
+import gov.usgs.cida.ncetl.sis.ContinuousIngest;
 import gov.usgs.cida.ncetl.sis.FileFetcher;
+import gov.usgs.cida.ncetl.sis.RunScheduler;
+import gov.usgs.cida.ncetl.sis.RunTracker;
+
+import java.lang.management.ManagementFactory;
 
 import org.joda.time.DateMidnight;
 import org.slf4j.Logger;
@@ -9,19 +15,58 @@ import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.integration.Message;
 import org.springframework.integration.core.PollableChannel;
-import org.springframework.integration.store.MessageGroupStore;
 
 public class Main {
 
 	public static final int SECOND = 1000;
 	public static final int MINUTE = 60 * SECOND;
 	public static final int HOUR = 60 * MINUTE;
+	
+	public static final String WATCH = "watch";
+	public static final String BACKFILL = "backfill";
+	public static final String DAEMON = "daemon";
 
 	private static Logger logger = LoggerFactory.getLogger(Main.class);
 
 	public static void main(String[] args) throws Exception {
+		 long loadStart = System.currentTimeMillis();
 		 ConfigurableApplicationContext context = new ClassPathXmlApplicationContext("jpa-integration-context.xml");
+		 long loaded = System.currentTimeMillis();
 		 logger.debug("Loaded context {}", context);
+		 logger.info("Startup took {} ms, {} ms of it loading the context",
+				 loaded - ManagementFactory.getRuntimeMXBean().getStartTime(), loaded - loadStart);
+		 
+		 if (args.length > 0 && WATCH.equals(args[0])) {
+			 // continuous mode: the batch flow is not started, input is appended as it arrives
+			 context.registerShutdownHook();
+			 ContinuousIngest ingest = context.getBean(ContinuousIngest.class);
+			 ingest.start();
+			 logger.info("Watching for input; stop with an interrupt");
+			 ingest.awaitTermination();
+			 return;
+		 }
+		 
+		 if (args.length > 0 && DAEMON.equals(args[0])) {
+			 // daemon mode: the batch flow is run on the ncetl.daemon.cron schedule, or over JMX
+			 context.registerShutdownHook();
+			 RunScheduler scheduler = context.getBean(RunScheduler.class);
+			 scheduler.start();
+			 logger.info("Waiting for scheduled runs; stop with an interrupt");
+			 scheduler.awaitTermination();
+			 return;
+		 }
+		 
+		 if (args.length > 0 && BACKFILL.equals(args[0])) {
+			 // backfill from to, both yyyy-mm and inclusive; rerun the same range to resume
+			 if (args.length != 3) {
+				 logger.error("usage: backfill yyyy-mm yyyy-mm");
+				 System.exit(2);
+			 }
+			 Backfill backfill = context.getBean(Backfill.class);
+			 int failed = backfill.run(DateMidnight.parse(args[1]), DateMidnight.parse(args[2]));
+			 context.close();
+			 System.exit((failed == 0) ? 0 : 1);
+		 }
 		 
 		 if (args.length > 0) {
 			 // parse arg as yyyy-mm, use that for target date
@@ -37,27 +82,20 @@ public class Main {
 
 		 PollableChannel finis = context.getBean("finis", PollableChannel.class);
 		 PollableChannel errQueue = context.getBean("error-queue-chan", PollableChannel.class);
+		 RunTracker tracker = context.getBean(RunTracker.class);
 
-		 MessageGroupStore messageGroupStore = context.getBean("message-store",MessageGroupStore.class);
-
-		 // wait for a bit then kick the partial message groups along
-		 Thread.sleep(1 * MINUTE);
-		 logger.info("First timout expired, will expire message groups (ct {} in {} groups)", 
-				 messageGroupStore.getMessageCountForAllMessageGroups(),
-				 messageGroupStore.getMessageGroupCount());
-		 messageGroupStore.expireMessageGroups(0);
-		 
-		 
-		 // Timeout is a safety measure; we expect to be notified by the aggregated queue, but this may fail if
-		 // there are no files found (no files -> no messages, sigh).
-		 long timeout = 1 * MINUTE;
-		 
-		 logger.info("Second timout expired, will wait for final message on {}", 
-				 finis);
-		 Message<?> msg = finis.receive(timeout);
+		 // gather-agg sends to finis once every config scanned has an outcome;
+		 // the timeout only guards against a stage that loses messages
+		 logger.info("Waiting for final message on {}", finis);
+		 Message<?> msg = finis.receive(tracker.getRunTimeout());
 		 logger.debug("Got final message {}", msg);
 		 
 		 int exitCode = 0;
+		 if (msg == null) {
+			 logger.error("Run did not finish within {} ms, expected {} outcomes", 
+					 tracker.getRunTimeout(), tracker.getExpected());
+			 exitCode = 1;
+		 }
 		 
 		 // check for errors
 		 msg = errQueue.receive(1 * SECOND);
@@ -3,9 +3,6 @@ package gov.usgs.cida.ncetl.jpa;
 import java.io.Serializable;
 import javax.persistence.*;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -20,9 +17,7 @@ import java.util.Set;
  */
 @Entity
 @Table(name="ARCHIVE_CONFIG")
-public class ArchiveConfig implements Serializable {
-    private static final int MAX_HISTORY_SIZE = 64;
-
+public class ArchiveConfig implements Serializable, ArchiveConfigI {
 	private static final String XY = "xy";
 
 	public static final String VAR = "var";
@@ -45,12 +40,13 @@ public class ArchiveConfig implements Serializable {
 	private Set<RenameMapping> renameMappings;
 	private List<EtlHistory> etlHistories;
 	private boolean active;
+	private String netcdfVersion;
+	private String chunking;
+	private int deflateLevel;
 	
 	public ArchiveConfig() {
 	}
 
-	private static Logger logger = LoggerFactory.getLogger(ArchiveConfig.class);
-	
 	@Id
 	@GeneratedValue(strategy=GenerationType.AUTO)
 	public int getId() {
@@ -149,6 +145,36 @@ public class ArchiveConfig implements Serializable {
 		this.active = active;
 	}
 
+	/** Output file format, netcdf3 or netcdf4 */
+	@Column(name="NETCDF_VERSION")
+	public String getNetcdfVersion() {
+		return this.netcdfVersion;
+	}
+
+	public void setNetcdfVersion(String netcdfVersion) {
+		this.netcdfVersion = netcdfVersion;
+	}
+
+	/** NetCDF-4 chunk shape for data variables, either a preset name or comma separated lengths */
+	@Column(name="CHUNKING")
+	public String getChunking() {
+		return this.chunking;
+	}
+
+	public void setChunking(String chunking) {
+		this.chunking = chunking;
+	}
+
+	/** NetCDF-4 deflate level, 0 for none */
+	@Column(name="DEFLATE_LEVEL")
+	public int getDeflateLevel() {
+		return this.deflateLevel;
+	}
+
+	public void setDeflateLevel(int deflateLevel) {
+		this.deflateLevel = deflateLevel;
+	}
+
 
 	//bi-directional many-to-one association to ExcludeMapping
 	@OneToMany(mappedBy="archiveConfig",fetch=FetchType.EAGER)
@@ -206,7 +232,8 @@ public class ArchiveConfig implements Serializable {
 	}
 	
 	//bi-directional many-to-one association to EtlHistory
-	@OneToMany(mappedBy="archiveConfig",cascade={CascadeType.ALL},fetch=FetchType.EAGER)
+	// lazy: loading configs must not load their history; add to it and page through it with EtlHistoryManager
+	@OneToMany(mappedBy="archiveConfig",cascade={CascadeType.ALL},fetch=FetchType.LAZY)
 	@OrderBy("ts DESC")
 	public List<EtlHistory> getEtlHistories() {
 		return this.etlHistories;
@@ -216,25 +243,6 @@ public class ArchiveConfig implements Serializable {
 		this.etlHistories = etlHistories;
 	}
 
-	public EtlHistory addEtlHistory(EtlHistory etlHistory) {
-		getEtlHistories().add(etlHistory);
-		etlHistory.setArchiveConfig(this);
-
-		List<EtlHistory> hh = getEtlHistories();
-		if (hh.size() > MAX_HISTORY_SIZE) {
-			EtlHistory h = hh.get(hh.size()-1);
-			removeEtlHistory(h);
-		}
-		return etlHistory;
-	}
-
-	public EtlHistory removeEtlHistory(EtlHistory etlHistory) {
-		getEtlHistories().remove(etlHistory);
-		etlHistory.setArchiveConfig(null);
-
-		return etlHistory;
-	}
-
 	@Transient
 	private List<String> getExcludes(String type) {
 		List<String> xm = new ArrayList<String>();
@@ -310,19 +318,4 @@ public class ArchiveConfig implements Serializable {
 		}		
 	}
 
-
-	@Transient
-	public ArchiveConfig addHistory(String outcome) {
-		
-		EtlHistory h = new EtlHistory();
-		h.setOutcome(outcome);
-		
-		addEtlHistory(h);
-		
-		logger.debug("Added history {} to ArchiveConfig#{}", outcome, getId());
-		
-		return this;
-	}
-
-
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What archiving reads of a config: the ArchiveConfig entity, or the
+ * ArchiveSettings snapshot of it that runs pass along with their messages.
+ */
+public interface ArchiveConfigI {
+
+	public abstract int getId();
+
+	public abstract int getRfcCode();
+
+	public abstract String getName();
+
+	public abstract boolean getActive();
+
+	public abstract String getInputDir();
+
+	public abstract String getOutputDir();
+
+	public abstract String getCompleteDir();
+
+	public abstract String getFileRegex();
+
+	public abstract String getUnlimitedDim();
+
+	public abstract String getUnlimitedUnits();
+
+	public abstract String getNetcdfVersion();
+
+	public abstract String getChunking();
+
+	public abstract int getDeflateLevel();
+
+	public abstract List<String> getDim_excludes();
+
+	public abstract List<String> getVar_excludes();
+
+	public abstract List<String> getXy_excludes();
+
+	public abstract Map<String, String> getRenames();
+
+}
@@ -1,33 +1,117 @@
 package gov.usgs.cida.ncetl.jpa;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
 import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
 
+/**
+ * Looks configs up by RFC.  settings(rfc) answers from a cache of
+ * ArchiveSettings snapshots, read without locking; a snapshot is only
+ * replaced when configs are loaded again by a run (refresh) or dropped on
+ * request (invalidate, also over JMX after editing ARCHIVE_CONFIG).  Runs
+ * pass the snapshot along in the config header, and watch mode and backfill
+ * hold snapshots (allSettings), so no entity outlives the query it came from.
+ */
+@ManagedResource(objectName="gov.usgs.cida.ncetl:name=archiveConfigManager", description="Config lookup by RFC")
 public class ArchiveConfigManager implements ConfigFetcherI {
 
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
     @PersistenceContext
 	private EntityManager em;
-	
-	private TypedQuery<ArchiveConfig> q;
-	
+
+	private final ConcurrentMap<Integer, ArchiveSettings> settings = new ConcurrentHashMap<Integer, ArchiveSettings>();
+	// bumped by every invalidation, so a snapshot loaded across one is not kept
+	private final AtomicLong generation = new AtomicLong();
+
 	public void setEntityManager(EntityManager em) {
 		this.em = em;
-		this.q = em.createQuery("select s from ArchiveConfig s where s.rfc_code = ?", ArchiveConfig.class);
 	}
-	
-	public synchronized ArchiveConfig fetch(int rfc) {
+
+	public ArchiveConfig fetch(int rfc) {
+		// a query per call: the entity manager is shared between threads, a query is not
+		TypedQuery<ArchiveConfig> q = em.createQuery("select s from ArchiveConfig s where s.rfcCode = ?1", ArchiveConfig.class);
 		q.setParameter(1, rfc);
 		return q.getSingleResult();
 	}
-	
+
+	public ArchiveSettings settings(int rfc) {
+		ArchiveSettings s = settings.get(rfc);
+		if (s != null) {
+			return s;
+		}
+		long before = generation.get();
+		s = new ArchiveSettings(fetch(rfc));
+		ArchiveSettings other = settings.putIfAbsent(rfc, s);
+		if (other != null) {
+			return other;
+		}
+		if (generation.get() != before) {
+			// may have been read before the change, leave it for the next caller
+			settings.remove(rfc, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Replace the snapshots of these configs, just loaded.
+	 */
+	public void refresh(List<ArchiveConfig> configs) {
+		generation.incrementAndGet();
+		for (ArchiveConfig cfg : configs) {
+			settings.put(cfg.getRfcCode(), new ArchiveSettings(cfg));
+		}
+		logger.debug("Refreshed settings of {} configs", configs.size());
+	}
+
+	@ManagedOperation(description="Drop the cached settings of an RFC")
+	@ManagedOperationParameters({@ManagedOperationParameter(name="rfc", description="RFC code")})
+	public void invalidate(int rfc) {
+		generation.incrementAndGet();
+		settings.remove(rfc);
+	}
+
+	@ManagedOperation(description="Drop all cached settings")
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		settings.clear();
+	}
+
+	/**
+	 * Load every config, replacing the snapshots of all of them.
+	 *
+	 * @return the snapshots, for code that holds configs beyond a run
+	 */
+	public List<ArchiveSettings> allSettings() {
+		List<ArchiveConfig> configs = all();
+		generation.incrementAndGet();
+		List<ArchiveSettings> value = new ArrayList<ArchiveSettings>(configs.size());
+		for (ArchiveConfig cfg : configs) {
+			ArchiveSettings s = new ArchiveSettings(cfg);
+			settings.put(cfg.getRfcCode(), s);
+			value.add(s);
+		}
+		return value;
+	}
+
 	public List<ArchiveConfig> all() {
 		TypedQuery<ArchiveConfig> q = em.createQuery("select s from ArchiveConfig s ", gov.usgs.cida.ncetl.jpa.ArchiveConfig.class);
-		
+
 		return q.getResultList();
 	}
 }
@@ -0,0 +1,130 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable copy of the settings of an ArchiveConfig that archiving needs,
+ * without the entity's history or its tie to a persistence context, so one
+ * instance can be shared by every thread and message of an RFC.
+ */
+public final class ArchiveSettings implements ArchiveConfigI {
+
+	private final int id;
+	private final int rfcCode;
+	private final String name;
+	private final boolean active;
+	private final String inputDir;
+	private final String outputDir;
+	private final String completeDir;
+	private final String fileRegex;
+	private final String unlimitedDim;
+	private final String unlimitedUnits;
+	private final String netcdfVersion;
+	private final String chunking;
+	private final int deflateLevel;
+	private final List<String> dimExcludes;
+	private final List<String> varExcludes;
+	private final List<String> xyExcludes;
+	private final Map<String, String> renames;
+
+	public ArchiveSettings(ArchiveConfig cfg) {
+		id = cfg.getId();
+		rfcCode = cfg.getRfcCode();
+		name = cfg.getName();
+		active = cfg.getActive();
+		inputDir = cfg.getInputDir();
+		outputDir = cfg.getOutputDir();
+		completeDir = cfg.getCompleteDir();
+		fileRegex = cfg.getFileRegex();
+		unlimitedDim = cfg.getUnlimitedDim();
+		unlimitedUnits = cfg.getUnlimitedUnits();
+		netcdfVersion = cfg.getNetcdfVersion();
+		chunking = cfg.getChunking();
+		deflateLevel = cfg.getDeflateLevel();
+		// each of these builds a new collection, so nothing is shared with the entity
+		dimExcludes = Collections.unmodifiableList(cfg.getDim_excludes());
+		varExcludes = Collections.unmodifiableList(cfg.getVar_excludes());
+		xyExcludes = Collections.unmodifiableList(cfg.getXy_excludes());
+		Map<String, String> rn = new HashMap<String, String>();
+		for (RenameMapping m : cfg.getRenameMappings()) {
+			rn.put(m.getFromName(), m.getToName());
+		}
+		renames = Collections.unmodifiableMap(rn);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getRfcCode() {
+		return rfcCode;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean getActive() {
+		return active;
+	}
+
+	public String getInputDir() {
+		return inputDir;
+	}
+
+	public String getOutputDir() {
+		return outputDir;
+	}
+
+	public String getCompleteDir() {
+		return completeDir;
+	}
+
+	public String getFileRegex() {
+		return fileRegex;
+	}
+
+	public String getUnlimitedDim() {
+		return unlimitedDim;
+	}
+
+	public String getUnlimitedUnits() {
+		return unlimitedUnits;
+	}
+
+	public String getNetcdfVersion() {
+		return netcdfVersion;
+	}
+
+	public String getChunking() {
+		return chunking;
+	}
+
+	public int getDeflateLevel() {
+		return deflateLevel;
+	}
+
+	public List<String> getDim_excludes() {
+		return dimExcludes;
+	}
+
+	public List<String> getVar_excludes() {
+		return varExcludes;
+	}
+
+	public List<String> getXy_excludes() {
+		return xyExcludes;
+	}
+
+	public Map<String, String> getRenames() {
+		return renames;
+	}
+
+	@Override
+	public String toString() {
+		return "ArchiveSettings [rfc " + rfcCode + ", " + name + "]";
+	}
+}
@@ -5,4 +5,9 @@ public interface ConfigFetcherI {
 
 	public abstract ArchiveConfig fetch(int rfc);
 
+	/**
+	 * Settings of the config, which may be cached; for use per message.
+	 */
+	public abstract ArchiveSettings settings(int rfc);
+
 }
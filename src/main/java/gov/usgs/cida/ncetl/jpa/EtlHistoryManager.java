@@ -1,8 +1,13 @@
 package gov.usgs.cida.ncetl.jpa;
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import javax.persistence.TypedQuery;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +22,16 @@ public class EtlHistoryManager {
 
 	@PersistenceContext
 	private EntityManager em;
+	
+	private int keep = 64;
+	
+	/**
+	 * Rows of history kept per config; each outcome recorded drops those
+	 * older than this many.  0 keeps them all.
+	 */
+	public void setKeep(int keep) {
+		this.keep = keep;
+	}
 		
 	// Transaction propagation REQUIRES_NEW so error will get recorded even though this is in error chain 
 	@Transactional(propagation=Propagation.REQUIRES_NEW)
@@ -33,12 +48,94 @@ public class EtlHistoryManager {
 		int ct = direct.executeUpdate();
 		
 		logger.trace("insert result is {}", ct);
+		prune(rfc);
 	}
 	
+	// outcome of a whole run, not of any one config
 	@Transactional(propagation=Propagation.REQUIRES_NEW)
-	public void recordOk(ArchiveConfig cfg, String msg) {
-		cfg = em.merge(cfg);
-		cfg.addHistory(msg);
+	public void recordRun(String msg) {
+		Query direct = em.createNativeQuery("insert into ETL_HISTORY(ARCHIVE_ID, OUTCOME) values (null, ?)");
+		
+		direct.setParameter(1, gov.usgs.cida.ncetl.jpa.EtlHistory.trimOutcome(msg));
+		
+		int ct = direct.executeUpdate();
+		
+		logger.trace("insert result is {}", ct);
+	}
+	
+	// inserts the one row, without merging the config or loading its history
+	@Transactional(propagation=Propagation.REQUIRES_NEW)
+	public void recordOk(ArchiveConfigI cfg, String msg) {
+		EtlHistory h = new EtlHistory();
+		h.setOutcome(msg);
+		h.setArchiveConfig(em.getReference(ArchiveConfig.class, cfg.getId()));
+		em.persist(h);
 		em.flush();
+		prune(cfg.getRfcCode());
+	}
+	
+	// by the id of the oldest row kept: not every database takes a limit in a delete
+	private void prune(int rfc) {
+		if (keep <= 0) {
+			return;
+		}
+		Query oldest = em.createNativeQuery("select ID from ETL_HISTORY " +
+		" where ARCHIVE_ID = (select ID from ARCHIVE_CONFIG where RFC_CODE = ?) order by ID desc");
+		oldest.setParameter(1, rfc);
+		oldest.setFirstResult(keep - 1);
+		oldest.setMaxResults(1);
+		List<?> rows = oldest.getResultList();
+		if (rows.isEmpty()) {
+			return;
+		}
+		
+		Query direct = em.createNativeQuery("delete from ETL_HISTORY " +
+		" where ARCHIVE_ID = (select ID from ARCHIVE_CONFIG where RFC_CODE = ?) and ID < ?");
+		direct.setParameter(1, rfc);
+		direct.setParameter(2, ((Number) rows.get(0)).longValue());
+		
+		int ct = direct.executeUpdate();
+		
+		logger.trace("pruned {} rows of history for {}", ct, rfc);
+	}
+	
+	/**
+	 * A page of the history of an RFC, newest first.
+	 * 
+	 * @param first rows to skip
+	 * @param max largest number of rows returned
+	 */
+	@Transactional(readOnly=true)
+	public List<EtlHistory> history(int rfc, int first, int max) {
+		TypedQuery<EtlHistory> q = em.createQuery(
+				"select h from EtlHistory h where h.archiveConfig.rfcCode = ?1 order by h.id desc", EtlHistory.class);
+		q.setParameter(1, rfc);
+		q.setFirstResult(first);
+		q.setMaxResults(max);
+		return q.getResultList();
+	}
+	
+	@Transactional(readOnly=true)
+	public long historySize(int rfc) {
+		TypedQuery<Long> q = em.createQuery(
+				"select count(h) from EtlHistory h where h.archiveConfig.rfcCode = ?1", Long.class);
+		q.setParameter(1, rfc);
+		return q.getSingleResult();
+	}
+	
+	/**
+	 * The newest outcome of each RFC that has any, from the LATEST_ETL_OUTCOME view.
+	 */
+	@Transactional(readOnly=true)
+	public List<LatestOutcome> latestOutcomes() {
+		Query q = em.createNativeQuery("select RFC_CODE, NAME, TS, OUTCOME from LATEST_ETL_OUTCOME order by RFC_CODE");
+		
+		List<?> rows = q.getResultList();
+		List<LatestOutcome> value = new ArrayList<LatestOutcome>(rows.size());
+		for (Object o : rows) {
+			Object[] row = (Object[]) o;
+			value.add(new LatestOutcome(((Number) row[0]).intValue(), (String) row[1], (Timestamp) row[2], (String) row[3]));
+		}
+		return value;
 	}
 }
@@ -0,0 +1,56 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import java.io.Serializable;
+import javax.persistence.*;
+
+
+/**
+ * The persistent class for the INPUT_DIR_SCAN database table: when an
+ * input directory was last indexed, as the directory's own modification time,
+ * and for which configs, as lines of RFC code and file regex.
+ * 
+ */
+@Entity
+@Table(name="INPUT_DIR_SCAN")
+public class InputDirScan implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private String inputDir;
+	private long modified;
+	private String configs;
+
+	public InputDirScan() {
+	}
+
+	public InputDirScan(String inputDir, long modified, String configs) {
+		this.inputDir = inputDir;
+		this.modified = modified;
+		this.configs = configs;
+	}
+
+	@Id
+	@Column(name="INPUT_DIR")
+	public String getInputDir() {
+		return this.inputDir;
+	}
+
+	public void setInputDir(String inputDir) {
+		this.inputDir = inputDir;
+	}
+
+	public long getModified() {
+		return this.modified;
+	}
+
+	public void setModified(long modified) {
+		this.modified = modified;
+	}
+
+	@Column(name="CONFIGS", length=4000)
+	public String getConfigs() {
+		return this.configs;
+	}
+
+	public void setConfigs(String configs) {
+		this.configs = configs;
+	}
+}
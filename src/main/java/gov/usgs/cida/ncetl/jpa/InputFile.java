@@ -0,0 +1,125 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import java.io.File;
+import java.io.Serializable;
+import javax.persistence.*;
+
+
+/**
+ * The persistent class for the INPUT_FILE database table: one input file
+ * matched by the file regex of an RFC, with the date parsed from its name.
+ * 
+ */
+@Entity
+@Table(name="INPUT_FILE")
+public class InputFile implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private Integer id;
+	private String inputDir;
+	private String name;
+	private long fileSize;
+	private long modified;
+	private int rfcCode;
+	private int year;
+	private int month;
+	private int day;
+
+	public InputFile() {
+	}
+
+	public InputFile(String inputDir, String name, long fileSize, long modified, int rfcCode, int year, int month, int day) {
+		this.inputDir = inputDir;
+		this.name = name;
+		this.fileSize = fileSize;
+		this.modified = modified;
+		this.rfcCode = rfcCode;
+		this.year = year;
+		this.month = month;
+		this.day = day;
+	}
+
+	@Id
+	@GeneratedValue(strategy=GenerationType.AUTO)
+	public Integer getId() {
+		return this.id;
+	}
+
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	@Column(name="INPUT_DIR")
+	public String getInputDir() {
+		return this.inputDir;
+	}
+
+	public void setInputDir(String inputDir) {
+		this.inputDir = inputDir;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	@Column(name="FILE_SIZE")
+	public long getFileSize() {
+		return this.fileSize;
+	}
+
+	public void setFileSize(long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	/** Modification time of the file, in milliseconds since the epoch. */
+	public long getModified() {
+		return this.modified;
+	}
+
+	public void setModified(long modified) {
+		this.modified = modified;
+	}
+
+	@Column(name="RFC_CODE")
+	public int getRfcCode() {
+		return this.rfcCode;
+	}
+
+	public void setRfcCode(int rfcCode) {
+		this.rfcCode = rfcCode;
+	}
+
+	@Column(name="FILE_YEAR")
+	public int getYear() {
+		return this.year;
+	}
+
+	public void setYear(int year) {
+		this.year = year;
+	}
+
+	@Column(name="FILE_MONTH")
+	public int getMonth() {
+		return this.month;
+	}
+
+	public void setMonth(int month) {
+		this.month = month;
+	}
+
+	@Column(name="FILE_DAY")
+	public int getDay() {
+		return this.day;
+	}
+
+	public void setDay(int day) {
+		this.day = day;
+	}
+
+	public File toFile() {
+		return new File(inputDir, name);
+	}
+}
@@ -0,0 +1,35 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+
+public interface InputFileIndexI {
+
+	/**
+	 * @return modification time of the directory when it was last indexed,
+	 * and the configs indexed then, or null if never
+	 */
+	public abstract InputDirScan getScan(String inputDir);
+
+	/**
+	 * @return names of the files indexed in the directory for an RFC
+	 */
+	public abstract Set<String> getNames(String inputDir, int rfc);
+
+	/**
+	 * Add and remove entries for a directory and record its modification
+	 * time and the configs it was indexed for.  The entries of the reindexed
+	 * RFCs are all replaced by the added ones.
+	 */
+	public abstract void refresh(String inputDir, long dirModified, String configs,
+			Collection<Integer> reindexed, List<InputFile> added, Collection<String> removed);
+
+	/**
+	 * @return the indexed files of an RFC from one month to another, inclusive,
+	 * the months given as year * 12 + month - 1; in name order
+	 */
+	public abstract List<InputFile> filesIn(String inputDir, int rfc, int firstMonth, int lastMonth);
+
+}
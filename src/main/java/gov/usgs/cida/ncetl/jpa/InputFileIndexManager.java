@@ -0,0 +1,80 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Transactional;
+
+public class InputFileIndexManager implements InputFileIndexI {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	// keeps "in" lists within what every database accepts
+	private static final int DELETE_BATCH = 500;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	@Override
+	@Transactional(readOnly=true)
+	public InputDirScan getScan(String inputDir) {
+		return em.find(InputDirScan.class, inputDir);
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public Set<String> getNames(String inputDir, int rfc) {
+		List<String> names = em.createQuery(
+				"select f.name from InputFile f where f.inputDir = :dir and f.rfcCode = :rfc", String.class)
+				.setParameter("dir", inputDir)
+				.setParameter("rfc", rfc)
+				.getResultList();
+		return new HashSet<String>(names);
+	}
+
+	@Override
+	@Transactional
+	public void refresh(String inputDir, long dirModified, String configs,
+			Collection<Integer> reindexed, List<InputFile> added, Collection<String> removed) {
+		if ( ! reindexed.isEmpty()) {
+			em.createQuery("delete from InputFile f where f.inputDir = :dir and f.rfcCode in :rfcs")
+				.setParameter("dir", inputDir)
+				.setParameter("rfcs", reindexed)
+				.executeUpdate();
+		}
+		List<String> gone = new ArrayList<String>(removed);
+		for (int i = 0; i < gone.size(); i += DELETE_BATCH) {
+			em.createQuery("delete from InputFile f where f.inputDir = :dir and f.name in :names")
+				.setParameter("dir", inputDir)
+				.setParameter("names", gone.subList(i, Math.min(i + DELETE_BATCH, gone.size())))
+				.executeUpdate();
+		}
+		for (InputFile f : added) {
+			em.persist(f);
+		}
+		em.merge(new InputDirScan(inputDir, dirModified, configs));
+		em.flush();
+		logger.debug("Indexed {}: {} added, {} removed", new Object[] {inputDir, added.size(), gone.size()});
+	}
+
+	@Override
+	@Transactional(readOnly=true)
+	public List<InputFile> filesIn(String inputDir, int rfc, int firstMonth, int lastMonth) {
+		return em.createQuery(
+				"select f from InputFile f where f.inputDir = :dir and f.rfcCode = :rfc " +
+				"and f.year * 12 + f.month - 1 between :first and :last order by f.name", InputFile.class)
+				.setParameter("dir", inputDir)
+				.setParameter("rfc", rfc)
+				.setParameter("first", firstMonth)
+				.setParameter("last", lastMonth)
+				.getResultList();
+	}
+}
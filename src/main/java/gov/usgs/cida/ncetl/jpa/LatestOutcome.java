@@ -0,0 +1,43 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import java.sql.Timestamp;
+
+/**
+ * A row of the LATEST_ETL_OUTCOME view: the newest ETL_HISTORY outcome of
+ * one RFC.
+ */
+public class LatestOutcome {
+
+	private final int rfcCode;
+	private final String name;
+	private final Timestamp ts;
+	private final String outcome;
+
+	public LatestOutcome(int rfcCode, String name, Timestamp ts, String outcome) {
+		this.rfcCode = rfcCode;
+		this.name = name;
+		this.ts = ts;
+		this.outcome = outcome;
+	}
+
+	public int getRfcCode() {
+		return rfcCode;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Timestamp getTs() {
+		return ts;
+	}
+
+	public String getOutcome() {
+		return outcome;
+	}
+
+	@Override
+	public String toString() {
+		return rfcCode + " " + ts + " " + outcome;
+	}
+}
@@ -0,0 +1,107 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import liquibase.exception.LiquibaseException;
+import liquibase.integration.spring.SpringLiquibase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * SpringLiquibase that, when skipWhenCurrent is set, first looks for the
+ * last changeset of the changelog in DATABASECHANGELOG and does not run
+ * Liquibase if it is there, saving the parse and checksum validation of
+ * every changeset at each start.  Changesets for one database only are not
+ * taken as the last, since other databases never record them.
+ *
+ * This trusts that changesets are only ever added at the end of the
+ * changelog; an edit to an old one is not noticed until Liquibase runs.
+ */
+public class SchemaCheckingLiquibase extends SpringLiquibase {
+
+	private static final Pattern CHANGESET = Pattern.compile("<changeSet\\s([^>]*)>");
+	private static final Pattern ID = Pattern.compile("\\bid=\"([^\"]*)\"");
+	private static final Pattern AUTHOR = Pattern.compile("\\bauthor=\"([^\"]*)\"");
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private boolean skipWhenCurrent = false;
+
+	public void setSkipWhenCurrent(boolean skipWhenCurrent) {
+		this.skipWhenCurrent = skipWhenCurrent;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws LiquibaseException {
+		long start = System.currentTimeMillis();
+		if (skipWhenCurrent && isCurrent()) {
+			logger.info("Schema is current, Liquibase not run ({} ms)", System.currentTimeMillis() - start);
+			return;
+		}
+		super.afterPropertiesSet();
+		logger.info("Liquibase ran in {} ms", System.currentTimeMillis() - start);
+	}
+
+	boolean isCurrent() {
+		String[] last;
+		try {
+			last = lastChangeSet(readChangeLog());
+		} catch (IOException e) {
+			logger.warn("Could not read changelog " + getChangeLog(), e);
+			return false;
+		}
+		if (last == null) {
+			return false;
+		}
+		try {
+			int found = new JdbcTemplate(getDataSource()).queryForInt(
+					"select count(*) from DATABASECHANGELOG where ID = ? and AUTHOR = ?", last[0], last[1]);
+			logger.debug("Changeset {} by {} applied: {}", new Object[] {last[0], last[1], found > 0});
+			return found > 0;
+		} catch (DataAccessException e) {
+			// no DATABASECHANGELOG yet
+			logger.info("Could not check schema version: {}", e.getMessage());
+			return false;
+		}
+	}
+
+	private String readChangeLog() throws IOException {
+		InputStream in = new DefaultResourceLoader().getResource(getChangeLog()).getInputStream();
+		try {
+			return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * @return id and author of the last changeset that is not for one database only
+	 */
+	static String[] lastChangeSet(String changeLog) {
+		String[] last = null;
+		Matcher m = CHANGESET.matcher(changeLog);
+		while (m.find()) {
+			String attributes = m.group(1);
+			if (attributes.contains("dbms=")) {
+				continue;
+			}
+			Matcher id = ID.matcher(attributes);
+			Matcher author = AUTHOR.matcher(attributes);
+			if (id.find() && author.find()) {
+				last = new String[] {id.group(1), author.group(1)};
+			}
+		}
+		return last;
+	}
+}
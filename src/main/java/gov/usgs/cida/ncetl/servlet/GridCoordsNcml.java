@@ -2,15 +2,15 @@ package gov.usgs.cida.ncetl.servlet;
 
 import com.google.common.io.Closeables;
 import gov.usgs.cida.data.grib.GribUtils;
+import gov.usgs.cida.data.grib.LatLonCache;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.DoubleBuffer;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
 import ucar.nc2.dt.GridDatatype;
 import ucar.nc2.dt.grid.GridDataset;
 import ucar.nc2.ft.FeatureDataset;
@@ -54,7 +54,7 @@ public class GridCoordsNcml extends HttpServlet {
         GridDatatype gdt = GribUtils.getDatatypeFromDataset(gridDs);
         double[] xCoords = GribUtils.getXCoords(gridDs);
         double[] yCoords = GribUtils.getYCoords(gridDs);
-        double[][] ncCoords = GribUtils.transformToLatLonNetCDFStyle(xCoords, yCoords, gdt);
+        DoubleBuffer[] ncCoords = LatLonCache.getDefault().getLatLons(xCoords, yCoords, gdt);
         
         response.setContentType("application/xml;charset=UTF-8");
         PrintWriter out = response.getWriter();
@@ -86,8 +86,7 @@ public class GridCoordsNcml extends HttpServlet {
             out.println("<attribute name=\"long_name\" value=\"Latitude\" />");
             out.println("<attribute name=\"standard_name\" value=\"latitude\" />");
             out.println("<values>");
-            Double[] lats = ArrayUtils.toObject(ncCoords[0]);
-            out.println(StringUtils.join(lats, ' '));
+            printValues(out, ncCoords[0]);
             out.println("</values>");
             out.println("</variable>");
             
@@ -96,8 +95,7 @@ public class GridCoordsNcml extends HttpServlet {
             out.println("<attribute name=\"long_name\" value=\"Longitude\" />");
             out.println("<attribute name=\"standard_name\" value=\"longitude\" />");
             out.println("<values>");
-            Double[] lons = ArrayUtils.toObject(ncCoords[1]);
-            out.println(StringUtils.join(lons, ' '));
+            printValues(out, ncCoords[1]);
             out.println("</values>");
             out.println("</variable>");
             
@@ -108,6 +106,19 @@ public class GridCoordsNcml extends HttpServlet {
         }
     }
 
+    /**
+     * Print the values space separated, straight from the cached buffer.
+     */
+    private static void printValues(PrintWriter out, DoubleBuffer values) {
+        while (values.hasRemaining()) {
+            out.print(values.get());
+            if (values.hasRemaining()) {
+                out.print(' ');
+            }
+        }
+        out.println();
+    }
+
     // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
     /**
      * Handles the HTTP
@@ -0,0 +1,317 @@
+package gov.usgs.cida.ncetl.sis;
+
+import gov.usgs.cida.data.grib.ArchiveException;
+import gov.usgs.cida.data.grib.NetCDFArchiver;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigManager;
+import gov.usgs.cida.ncetl.jpa.EtlHistoryManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateMidnight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * Rebuilds archives for a range of months outside the integration flow.
+ * One job is planned per RFC and month that has input, each input directory
+ * being listed once for the whole range, and the jobs are run on a pool of
+ * at most concurrency threads.
+ *
+ * Each finished job is appended to a progress file named for the range, so
+ * running the same range again skips the months already done.  A month that
+ * was cut off part way is rebuilt, or resumed if the archiver resumes.
+ */
+public class Backfill {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private NetCDFArchiver archiver;
+	private ArchiveConfigManager configManager;
+	private FileFetcher fileFetcher;
+	private EtlHistoryManager historyManager;
+	private int concurrency = 2;
+	private String progressDir = System.getProperty("user.home") + File.separator + ".ncetl" + File.separator + "backfill";
+
+	private Writer progress;
+
+	public void setArchiver(NetCDFArchiver archiver) {
+		this.archiver = archiver;
+	}
+
+	public void setConfigManager(ArchiveConfigManager configManager) {
+		this.configManager = configManager;
+	}
+
+	public void setFileFetcher(FileFetcher fileFetcher) {
+		this.fileFetcher = fileFetcher;
+	}
+
+	/**
+	 * Where outcomes are recorded; none are recorded if unset.
+	 */
+	public void setHistoryManager(EtlHistoryManager historyManager) {
+		this.historyManager = historyManager;
+	}
+
+	/**
+	 * Number of months built at the same time.
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Directory for progress files.  Empty or null keeps the default,
+	 * ~/.ncetl/backfill.
+	 */
+	public void setProgressDir(String progressDir) {
+		if (progressDir != null && !progressDir.trim().isEmpty()) {
+			this.progressDir = progressDir.trim();
+		}
+	}
+
+	/**
+	 * Backfill every active config.
+	 *
+	 * @return the number of jobs that failed
+	 */
+	public int run(DateMidnight from, DateMidnight to) throws IOException, InterruptedException {
+		List<ArchiveConfigI> active = new ArrayList<ArchiveConfigI>();
+		for (ArchiveConfigI cfg : configManager.allSettings()) {
+			if (cfg.getActive()) {
+				active.add(cfg);
+			}
+		}
+		return run(active, from, to);
+	}
+
+	/**
+	 * Build every month from the month of from to the month of to, inclusive,
+	 * that has not been finished by an earlier run over the same range.
+	 *
+	 * @return the number of jobs that failed
+	 */
+	public int run(List<? extends ArchiveConfigI> configs, DateMidnight from, DateMidnight to) throws IOException, InterruptedException {
+		File progressFile = progressFileFor(from, to);
+		Set<String> done = readProgress(progressFile);
+
+		List<Job> jobs = new ArrayList<Job>();
+		for (Job job : plan(configs, from, to)) {
+			if (done.contains(job.key())) {
+				logger.debug("{} already done", job);
+			} else {
+				jobs.add(job);
+			}
+		}
+		logger.info("Backfill {} to {}: {} jobs, {} already done",
+				new Object[] {from.toString("yyyy-MM"), to.toString("yyyy-MM"), jobs.size(), done.size()});
+
+		progress = new OutputStreamWriter(new FileOutputStream(progressFile, true), Charsets.UTF_8);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, concurrency), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "backfill-" + count.incrementAndGet());
+			}
+		});
+		int failed = 0;
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(jobs.size());
+			for (final Job job : jobs) {
+				results.add(pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return runJob(job);
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				try {
+					if (!result.get()) {
+						failed++;
+					}
+				} catch (ExecutionException e) {
+					logger.warn("backfill job failed", e.getCause());
+					failed++;
+				}
+			}
+		} finally {
+			// an interrupt stops the jobs not yet started; those are picked up next run
+			pool.shutdownNow();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+			Closeables.closeQuietly(progress);
+			progress = null;
+		}
+		logger.info("Backfill {} to {} finished, {} of {} jobs failed",
+				new Object[] {from.toString("yyyy-MM"), to.toString("yyyy-MM"), failed, jobs.size()});
+		return failed;
+	}
+
+	/**
+	 * One job per config and month in range with input files, in month
+	 * order.  Each input directory is listed once, by FileFetcher.findInput,
+	 * and so is each complete directory, which holds the inputs of months
+	 * already archived.
+	 */
+	public List<Job> plan(List<? extends ArchiveConfigI> configs, DateMidnight from, DateMidnight to) {
+		int first = FileFetcher.monthIndex(from.getYear(), from.getMonthOfYear());
+		int last = FileFetcher.monthIndex(to.getYear(), to.getMonthOfYear());
+
+		Map<Integer, SortedMap<Integer, List<File>>> found = fileFetcher.findInput(configs, first, last, true);
+
+		// month index -> jobs of that month, so jobs come out oldest first
+		TreeMap<Integer, List<Job>> byMonth = new TreeMap<Integer, List<Job>>();
+		for (ArchiveConfigI cfg : configs) {
+			SortedMap<Integer, List<File>> months = found.get(cfg.getRfcCode());
+			if (months == null) {
+				continue;
+			}
+			for (Map.Entry<Integer, List<File>> month : months.entrySet()) {
+				Job job = new Job(cfg, month.getKey() / 12, month.getKey() % 12 + 1);
+				// in name order, which is time order
+				job.input.addAll(month.getValue());
+				List<Job> monthJobs = byMonth.get(month.getKey());
+				if (monthJobs == null) {
+					monthJobs = new ArrayList<Job>();
+					byMonth.put(month.getKey(), monthJobs);
+				}
+				monthJobs.add(job);
+			}
+		}
+
+		List<Job> plan = new ArrayList<Job>();
+		for (List<Job> monthJobs : byMonth.values()) {
+			plan.addAll(monthJobs);
+		}
+		return plan;
+	}
+
+	private boolean runJob(Job job) {
+		String outputName = fileFetcher.makeOutputFileName(job.year, job.month, job.cfg.getRfcCode());
+		logger.info("Building {} from {} files", outputName, job.input.size());
+		try {
+			Object result = archiver.processFiles(job.input, outputName, job.cfg, job.year, job.month);
+			if (result instanceof ArchiveException) {
+				ArchiveException ax = (ArchiveException) result;
+				logger.warn("Could not build " + outputName, ax.getCause());
+				if (historyManager != null) {
+					historyManager.recordError(ax.toString(), job.cfg.getRfcCode());
+				}
+				return false;
+			}
+			if (historyManager != null) {
+				historyManager.recordOk(job.cfg, String.valueOf(result));
+			}
+			recordDone(job);
+			return true;
+		} catch (Exception e) {
+			logger.warn("Could not build " + outputName, e);
+			if (historyManager != null) {
+				historyManager.recordError(e.toString(), job.cfg.getRfcCode());
+			}
+			return false;
+		}
+	}
+
+	private synchronized void recordDone(Job job) throws IOException {
+		progress.write(job.key());
+		progress.write('\n');
+		progress.flush();
+	}
+
+	private File progressFileFor(DateMidnight from, DateMidnight to) throws IOException {
+		File dir = new File(progressDir);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create progress directory " + dir);
+		}
+		return new File(dir, "backfill." + from.toString("yyyy-MM") + "." + to.toString("yyyy-MM") + ".done");
+	}
+
+	private Set<String> readProgress(File progressFile) throws IOException {
+		Set<String> done = new HashSet<String>();
+		if (!progressFile.exists()) {
+			return done;
+		}
+		BufferedReader in = new BufferedReader(new FileReader(progressFile));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty()) {
+					done.add(line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return done;
+	}
+
+	/**
+	 * One RFC's archive for one month.
+	 */
+	public static class Job {
+		private final ArchiveConfigI cfg;
+		private final int year;
+		private final int month;
+		private final List<File> input = new ArrayList<File>();
+
+		Job(ArchiveConfigI cfg, int year, int month) {
+			this.cfg = cfg;
+			this.year = year;
+			this.month = month;
+		}
+
+		public ArchiveConfigI getConfig() {
+			return cfg;
+		}
+
+		public int getYear() {
+			return year;
+		}
+
+		public int getMonth() {
+			return month;
+		}
+
+		public List<File> getInput() {
+			return Collections.unmodifiableList(input);
+		}
+
+		String key() {
+			return String.format("%d %04d-%02d", cfg.getRfcCode(), year, month);
+		}
+
+		@Override
+		public String toString() {
+			return "Job " + key();
+		}
+	}
+}
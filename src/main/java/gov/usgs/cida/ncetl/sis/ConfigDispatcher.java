@@ -0,0 +1,62 @@
+package gov.usgs.cida.ncetl.sis;
+
+import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.Message;
+import org.springframework.integration.MessageChannel;
+import org.springframework.integration.MessagingException;
+import org.springframework.integration.message.ErrorMessage;
+import org.springframework.integration.support.MessageBuilder;
+
+/**
+ * Sends each config scanned on by itself, in place of a splitter.  The flow
+ * of a config up to grib-chan runs on the sending thread, so a config that
+ * fails there, on a bad regex or a failed settings lookup, would stop a
+ * splitter before the configs after it.  Here the failure goes to the error
+ * channel as that config's outcome, with its RFC and the run id, and the
+ * rest are still sent: RunTracker gets one outcome for every config.
+ */
+public class ConfigDispatcher {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private MessageChannel outputChannel;
+	private MessageChannel errorChannel;
+
+	public void setOutputChannel(MessageChannel outputChannel) {
+		this.outputChannel = outputChannel;
+	}
+
+	public void setErrorChannel(MessageChannel errorChannel) {
+		this.errorChannel = errorChannel;
+	}
+
+	public void dispatch(Message<List<ArchiveConfig>> scanned) {
+		int failed = 0;
+		for (ArchiveConfig cfg : scanned.getPayload()) {
+			Message<ArchiveConfig> message = MessageBuilder.withPayload(cfg)
+					.copyHeaders(scanned.getHeaders())
+					.build();
+			try {
+				outputChannel.send(message);
+			} catch (RuntimeException e) {
+				logger.warn("Config " + cfg.getName() + " failed, going on with the others", e);
+				Map<String, Object> headers = new HashMap<String, Object>();
+				headers.put("rfc", cfg.getRfcCode());
+				headers.put(RunTracker.RUN_ID, scanned.getHeaders().get(RunTracker.RUN_ID));
+				errorChannel.send(new ErrorMessage(new MessagingException(message,
+						"Config " + cfg.getName() + " failed: " + e.getMessage(), e), headers));
+				failed++;
+			}
+		}
+		if (failed > 0) {
+			logger.info("{} of {} configs failed before writing", failed, scanned.getPayload().size());
+		}
+	}
+}
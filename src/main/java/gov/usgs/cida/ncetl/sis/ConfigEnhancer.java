@@ -1,7 +1,7 @@
 package gov.usgs.cida.ncetl.sis;
 
 
-import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveSettings;
 import gov.usgs.cida.ncetl.jpa.ConfigFetcherI;
 
 import org.springframework.integration.Message;
@@ -18,7 +18,8 @@ public class ConfigEnhancer {
 	public Message<?> getConfig(Message<?> msg) {
 		Integer rfc = msg.getHeaders().get("rfc",  Integer.class);
 		
-		ArchiveConfig spec = asm.fetch(rfc);
+		// cached snapshot, not a query per message
+		ArchiveSettings spec = asm.settings(rfc);
 		
 		MessageBuilder<?> mb = MessageBuilder.fromMessage(msg);
 		mb.setHeader("spec", spec);
@@ -0,0 +1,422 @@
+package gov.usgs.cida.ncetl.sis;
+
+import gov.usgs.cida.data.grib.ArchiveException;
+import gov.usgs.cida.data.grib.DecodedFile;
+import gov.usgs.cida.data.grib.GridMismatchException;
+import gov.usgs.cida.data.grib.NetCDFArchiver;
+import gov.usgs.cida.data.grib.RollingNetCDFArchive;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Continuous mode: watches the input directory of every active config and
+ * appends each new or grown input file to the open archive of its month,
+ * instead of waiting for the monthly batch.
+ *
+ * A file is taken once it has had no events for the settle time, so files
+ * still being written are not read.  Hours already in the archive are
+ * skipped.  A file holding hours earlier than the end of its month's
+ * archive (late or out of order input) causes that month to be rebuilt from
+ * all of its files, those already moved to the complete directory too.  If
+ * events are lost, the current and previous month of the directory are
+ * queued again.
+ *
+ * WatchService only sees changes made through the local kernel, so input
+ * directories written to over NFS by another host send no events.  Every
+ * poll time the current and previous month of each directory are listed
+ * as well, and files new or changed since the last listing are queued as
+ * if an event had come for them.
+ *
+ * Appends happen on the one watcher thread.  Rebuilds are handed to the
+ * archiver (rebuildLater), and the files of a month being rebuilt wait
+ * until it is done.
+ */
+public class ContinuousIngest {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private NetCDFArchiver archiver;
+	private ArchiveConfigManager configManager;
+	private FileFetcher fileFetcher;
+	private long settleMillis = 60 * 1000;
+	private long idleCloseMillis = 60 * 60 * 1000;
+	private long pollMillis = 10 * 60 * 1000;
+
+	private volatile boolean running = false;
+	private WatchService watcher;
+	private Thread thread;
+	private final Map<WatchKey, Path> watched = new HashMap<WatchKey, Path>();
+	private final Map<String, List<ArchiveConfigI>> configsByDir = new HashMap<String, List<ArchiveConfigI>>();
+	// files waiting to settle, by time of their last event
+	private final Map<File, Long> pending = new LinkedHashMap<File, Long>();
+	private final Map<String, OpenMonth> open = new HashMap<String, OpenMonth>();
+	private final Map<String, Future<Object>> rebuilding = new HashMap<String, Future<Object>>();
+	// last modified time of each file the last poll listed
+	private Map<File, Long> seen = new HashMap<File, Long>();
+	private long lastPoll = 0;
+
+	public void setArchiver(NetCDFArchiver archiver) {
+		this.archiver = archiver;
+	}
+
+	public void setConfigManager(ArchiveConfigManager configManager) {
+		this.configManager = configManager;
+	}
+
+	public void setFileFetcher(FileFetcher fileFetcher) {
+		this.fileFetcher = fileFetcher;
+	}
+
+	/**
+	 * Time a file must go without change before it is read.
+	 */
+	public void setSettleMillis(long settleMillis) {
+		this.settleMillis = settleMillis;
+	}
+
+	/**
+	 * Time after which an archive with nothing appended is closed.
+	 */
+	public void setIdleCloseMillis(long idleCloseMillis) {
+		this.idleCloseMillis = idleCloseMillis;
+	}
+
+	/**
+	 * Time between listings of the input directories, for changes the watch
+	 * service does not see; 0 for none.
+	 */
+	public void setPollMillis(long pollMillis) {
+		this.pollMillis = pollMillis;
+	}
+
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		watcher = FileSystems.getDefault().newWatchService();
+		for (ArchiveConfigI cfg : configManager.allSettings()) {
+			if (!cfg.getActive()) {
+				continue;
+			}
+			Path dir = Paths.get(cfg.getInputDir()).toAbsolutePath().normalize();
+			List<ArchiveConfigI> dirConfigs = configsByDir.get(dir.toString());
+			if (dirConfigs == null) {
+				dirConfigs = new ArrayList<ArchiveConfigI>();
+				configsByDir.put(dir.toString(), dirConfigs);
+				WatchKey key = dir.register(watcher,
+						StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				watched.put(key, dir);
+				logger.info("Watching {}", dir);
+			}
+			dirConfigs.add(cfg);
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "continuous-ingest");
+		thread.start();
+	}
+
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			t = thread;
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				logger.warn("closing watch service", e);
+			}
+		}
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait until stopped.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null) {
+			t.join();
+		}
+	}
+
+	private void watch() {
+		try {
+			// what is there already is not new
+			poll(false);
+			while (running) {
+				WatchKey key = watcher.poll(settleMillis, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					queueEvents(key);
+				}
+				if (pollMillis > 0 && System.currentTimeMillis() - lastPoll >= pollMillis) {
+					poll(true);
+				}
+				finishRebuilds();
+				ingestSettled();
+				closeIdle();
+			}
+		} catch (ClosedWatchServiceException e) {
+			logger.debug("watch service closed");
+		} catch (InterruptedException e) {
+			logger.info("interrupted, stopping");
+		} finally {
+			for (OpenMonth month : open.values()) {
+				closeQuietly(month);
+			}
+			open.clear();
+		}
+	}
+
+	private void queueEvents(WatchKey key) {
+		Path dir = watched.get(key);
+		long now = System.currentTimeMillis();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				logger.warn("Lost events for {}, rescanning", dir);
+				rescan(dir);
+				continue;
+			}
+			Path name = (Path) event.context();
+			pending.put(dir.resolve(name).toFile(), now);
+		}
+		key.reset();
+	}
+
+	/**
+	 * @return the files of the current and previous month in a directory,
+	 * named as the watcher names them so ingestSettled finds the directory
+	 */
+	private List<File> recentFiles(Path dir) {
+		DateTime today = new DateTime();
+		DateTime before = today.minusMonths(1);
+		Map<Integer, SortedMap<Integer, List<File>>> found = fileFetcher.findInput(configsByDir.get(dir.toString()),
+				FileFetcher.monthIndex(before.getYear(), before.getMonthOfYear()),
+				FileFetcher.monthIndex(today.getYear(), today.getMonthOfYear()));
+		List<File> value = new ArrayList<File>();
+		for (SortedMap<Integer, List<File>> months : found.values()) {
+			for (List<File> files : months.values()) {
+				for (File f : files) {
+					value.add(f.toPath().toAbsolutePath().normalize().toFile());
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Queue every file of the current and previous month in a directory.
+	 */
+	private void rescan(Path dir) {
+		long now = System.currentTimeMillis();
+		for (File f : recentFiles(dir)) {
+			pending.put(f, now);
+		}
+	}
+
+	/**
+	 * List every directory, and queue the files new or changed since the
+	 * last listing if queue is set.
+	 */
+	private void poll(boolean queue) {
+		long now = System.currentTimeMillis();
+		Map<File, Long> listed = new HashMap<File, Long>();
+		int queued = 0;
+		for (Path dir : watched.values()) {
+			for (File f : recentFiles(dir)) {
+				long modified = f.lastModified();
+				listed.put(f, modified);
+				Long before = seen.get(f);
+				if (queue && (before == null || before != modified)) {
+					pending.put(f, now);
+					queued++;
+				}
+			}
+		}
+		seen = listed;
+		lastPoll = now;
+		if (queued > 0) {
+			logger.debug("Poll found {} new or changed files", queued);
+		}
+	}
+
+	private void ingestSettled() {
+		long settled = System.currentTimeMillis() - settleMillis;
+		List<File> ready = new ArrayList<File>();
+		for (Iterator<Map.Entry<File, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<File, Long> entry = it.next();
+			if (entry.getValue() <= settled) {
+				ready.add(entry.getKey());
+				it.remove();
+			}
+		}
+		// file names sort by date, so this appends in time order
+		Collections.sort(ready);
+		for (File f : ready) {
+			List<ArchiveConfigI> dirConfigs = configsByDir.get(f.getParent());
+			if (dirConfigs == null || !f.isFile()) {
+				continue;
+			}
+			for (ArchiveConfigI cfg : dirConfigs) {
+				Matcher m = Pattern.compile(cfg.getFileRegex()).matcher(f.getName());
+				if (m.matches()) {
+					ingest(f, cfg, Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+				}
+			}
+		}
+	}
+
+	private void ingest(File f, ArchiveConfigI cfg, int year, int month) {
+		String outputName = fileFetcher.makeOutputFileName(year, month, cfg.getRfcCode());
+		if (rebuilding.containsKey(outputName)) {
+			// appended once the rebuild is done, if it did not take it in
+			pending.put(f, System.currentTimeMillis());
+			return;
+		}
+		OpenMonth om = open.get(outputName);
+		try {
+			if (om == null) {
+				om = new OpenMonth(cfg, year, month, archiver.openForAppend(f, outputName, cfg));
+				open.put(outputName, om);
+			}
+			DecodedFile decoded = om.archive.decode(f);
+			if (om.archive.isInOrder(decoded)) {
+				om.archive.append(decoded);
+				// flush so readers see the new hours
+				om.archive.flush();
+				om.lastAppend = System.currentTimeMillis();
+				logger.debug("Appended {} to {}", f, outputName);
+			} else {
+				logger.info("{} is earlier than the end of {}, rebuilding the month", f, outputName);
+				open.remove(outputName);
+				om.archive.close();
+				rebuild(cfg, year, month, outputName);
+			}
+		} catch (GridMismatchException e) {
+			logger.info("{} is not on the grid of {}, rebuilding the month: {}", new Object[] {f, outputName, e.getMessage()});
+			open.remove(outputName);
+			if (om != null) {
+				closeQuietly(om);
+			}
+			try {
+				rebuild(cfg, year, month, outputName);
+			} catch (RuntimeException x) {
+				logger.warn("Could not rebuild " + outputName, x);
+			}
+		} catch (Exception e) {
+			logger.warn("Could not ingest " + f + " into " + outputName, e);
+			if (om != null) {
+				open.remove(outputName);
+				closeQuietly(om);
+			}
+		}
+	}
+
+	private void rebuild(ArchiveConfigI cfg, int year, int month, String outputName) {
+		int index = FileFetcher.monthIndex(year, month);
+		List<File> files = fileFetcher.findInput(Collections.singletonList(cfg), index, index, true)
+				.get(cfg.getRfcCode()).get(index);
+		if (files == null || files.isEmpty()) {
+			return;
+		}
+		rebuilding.put(outputName, archiver.rebuildLater(files, outputName, cfg, year, month));
+	}
+
+	private void finishRebuilds() throws InterruptedException {
+		for (Iterator<Map.Entry<String, Future<Object>>> it = rebuilding.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Future<Object>> entry = it.next();
+			if (!entry.getValue().isDone()) {
+				continue;
+			}
+			it.remove();
+			try {
+				Object result = entry.getValue().get();
+				if (result instanceof ArchiveException) {
+					logger.warn("Could not rebuild " + entry.getKey(), ((ArchiveException) result).getCause());
+				} else {
+					logger.info("Rebuilt {}", entry.getKey());
+				}
+			} catch (ExecutionException e) {
+				logger.warn("Could not rebuild " + entry.getKey(), e.getCause());
+			}
+		}
+	}
+
+	private void closeIdle() {
+		long idle = System.currentTimeMillis() - idleCloseMillis;
+		for (Iterator<OpenMonth> it = open.values().iterator(); it.hasNext(); ) {
+			OpenMonth om = it.next();
+			if (om.lastAppend <= idle) {
+				logger.debug("Closing idle archive for {} {}-{}", new Object[] {om.cfg.getName(), om.year, om.month});
+				it.remove();
+				closeQuietly(om);
+			}
+		}
+	}
+
+	private void closeQuietly(OpenMonth om) {
+		try {
+			om.archive.close();
+		} catch (IOException e) {
+			logger.warn("closing archive", e);
+		}
+	}
+
+	private static class OpenMonth {
+		final ArchiveConfigI cfg;
+		final int year;
+		final int month;
+		final RollingNetCDFArchive archive;
+		long lastAppend;
+
+		OpenMonth(ArchiveConfigI cfg, int year, int month, RollingNetCDFArchive archive) {
+			this.cfg = cfg;
+			this.year = year;
+			this.month = month;
+			this.archive = archive;
+			this.lastAppend = System.currentTimeMillis();
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package gov.usgs.cida.ncetl.sis;
 
 import gov.usgs.cida.data.grib.ArchiveInfoI;
-import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
 import gov.usgs.cida.ncetl.jpa.EtlHistoryManager;
 
 import org.slf4j.Logger;
@@ -61,12 +61,19 @@ public class ErrorRecorder {
 
 	@Transformer
 	public Message<String> recordError(
-			ArchiveInfoI ax) {
+			ArchiveInfoI ax,
+			@Header(value=FileListAggregator.LAST_BATCH, required=false) Boolean lastBatch,
+			@Header(value=RunTracker.RUN_ID, required=false) Long runId) {
 		
 		MessageBuilder<String> mb =  MessageBuilder.withPayload(ax.toString());
 
 		int rfc = ax.getRfcCode();
 		mb.setHeader("rfc", rfc);
+		mb.setHeader(RunTracker.RUN_ID, runId);
+		if (lastBatch != null) {
+			// so the run counts one outcome per month, not per sub-batch
+			mb.setHeader(FileListAggregator.LAST_BATCH, lastBatch);
+		}
 
 		logger.debug("Recording error outcome for {}", rfc);
 		manager.recordError(ax.toString(), rfc);
@@ -75,7 +82,7 @@ public class ErrorRecorder {
 	}
 
 	@Transformer
-	public String recordOutcome(ArchiveConfig cfg, String outcome) {
+	public String recordOutcome(ArchiveConfigI cfg, String outcome) {
 		manager.recordOk(cfg, outcome);
 		
 		return outcome;
@@ -4,16 +4,36 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
+import gov.usgs.cida.ncetl.jpa.InputDirScan;
+import gov.usgs.cida.ncetl.jpa.InputFile;
+import gov.usgs.cida.ncetl.jpa.InputFileIndexI;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -22,8 +42,12 @@ import org.springframework.integration.Message;
 import org.springframework.integration.annotation.Header;
 import org.springframework.integration.annotation.Splitter;
 import org.springframework.integration.annotation.Transformer;
+import org.springframework.integration.store.MessageGroup;
+import org.springframework.integration.store.MessageGroupStore;
 import org.springframework.integration.support.MessageBuilder;
 
+import com.google.common.base.Joiner;
+
 class YearMonthFileFilter implements FileFilter {
     private Pattern rfcPattern;
     private int targetYear;
@@ -68,15 +92,71 @@ public class FileFetcher {
 	
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	private DateTime now = new DateTime();
+	private InputFileIndexI fileIndex = null;
+	// coarsest directory time kept by the file systems we read (FAT, some NFS servers)
+	private static final long MODIFIED_TICK_MILLIS = 2000;
+	private static final long UNKNOWN_MODIFIED = -1;
+	// one refresh of a directory's index at a time, whichever mode asks
+	private final ConcurrentMap<String, Object> indexLocks = new ConcurrentHashMap<String, Object>();
+	
+	/**
+	 * Header set by scanInputDirs: the files found for each config, as
+	 * returned by findInput.
+	 */
+	public static final String SCANNED_INPUT = "scannedInput";
+	private MessageGroupStore messageGroupStore = null;
+	private ReleasedBatches releasedBatches = null;
+	
+	/**
+	 * Keep the input files in an index, so that scanInputDirs only lists a
+	 * directory that has changed since it was last indexed.
+	 */
+	public void setFileIndex(InputFileIndexI fileIndex) {
+		this.fileIndex = fileIndex;
+	}
+	
+	/**
+	 * The store of grib-agg.  Files of an output that are already held there,
+	 * from a run that stopped before the month was released, are not split out
+	 * again; the rest are numbered after them and counted with them, so the
+	 * gathering picks up where it stopped.
+	 */
+	public void setMessageGroupStore(MessageGroupStore messageGroupStore) {
+		this.messageGroupStore = messageGroupStore;
+	}
+	
+	/**
+	 * What grib-agg has released of months gathered in sub-batches.  Those
+	 * files are not split out again, but are counted with the month; a month
+	 * whose write failed is started over.
+	 */
+	public void setReleasedBatches(ReleasedBatches releasedBatches) {
+		this.releasedBatches = releasedBatches;
+	}
 	
-	public FileFilter fileFilterFor(ArchiveConfig cfg) {
+	/**
+	 * @throws RuntimeException if the regex of the config does not have year, month and day groups,
+	 * and an hour group for hourly files
+	 */
+	static Pattern patternFor(ArchiveConfigI cfg) {
 		String fileRegex = cfg.getFileRegex();
-        final Pattern rfcPattern = Pattern.compile(fileRegex);
+        Pattern rfcPattern = Pattern.compile(fileRegex);
         
         Matcher m = rfcPattern.matcher("nil");
-        if (m.groupCount() != 3) {
-        	throw new RuntimeException("Expected three capturing groups in " + fileRegex + ", got " + m.groupCount());
+        // year, month, day, and the hour for hourly files
+        if (m.groupCount() != 3 && m.groupCount() != 4) {
+        	throw new RuntimeException("Expected three or four capturing groups in " + fileRegex + ", got " + m.groupCount());
         }
+        return rfcPattern;
+	}
+	
+	public static int monthIndex(int year, int month) {
+		return year * 12 + (month - 1);
+	}
+	
+	public FileFilter fileFilterFor(ArchiveConfigI cfg) {
+		String fileRegex = cfg.getFileRegex();
+        final Pattern rfcPattern = patternFor(cfg);
 
 		DateTime targetDate = startOfPreviousMonth();
 		final int targetMonth = targetDate.getMonthOfYear();
@@ -90,29 +170,324 @@ public class FileFetcher {
 		return monthFilter;
 	}
 	
+	/**
+	 * Find the input of the month before now for all of these configs at
+	 * once, so that listInputFiles does not list a shared directory again
+	 * for every RFC.  The files found go in the SCANNED_INPUT header, so that
+	 * each run carries its own.
+	 * 
+	 * @return the configs, unchanged
+	 */
 	@Transformer
-	public Message<List<File>> listInputFiles(ArchiveConfig cfg) throws IOException {
-				
-		File inputDir = new File(cfg.getInputDir());
-        				
-		FileFilter monthFilter = fileFilterFor(cfg);
+	public Message<List<ArchiveConfig>> scanInputDirs(List<ArchiveConfig> configs) {
+		DateTime target = startOfPreviousMonth();
+		int month = monthIndex(target.getYear(), target.getMonthOfYear());
 		
-        File[] listFiles = inputDir.listFiles( monthFilter );
-        if (listFiles == null) {
-        	logger.warn("failed to list files in {}", inputDir);
-        	listFiles = new File[0];
-        }
+		Map<Integer, SortedMap<Integer, List<File>>> found = findInput(configs, month, month, true);
+		
+		return MessageBuilder.withPayload(configs)
+				.setHeader(SCANNED_INPUT, found)
+				.build();
+	}
+	
+	/**
+	 * Find the input files of these configs from month firstMonth to
+	 * lastMonth, inclusive (see monthIndex).  Each distinct directory is
+	 * listed once, every name being matched against all the configs that read
+	 * from it; with a file index, a directory that has not changed is not
+	 * listed at all.  Configs whose regex is invalid are left out.
+	 * 
+	 * With withComplete, the complete directory of each config is searched
+	 * as well, since the inputs of a month already archived have been moved
+	 * there; a month is only rebuilt from all of its files.  A name found in
+	 * both directories is taken from the input directory.
+	 * 
+	 * @return by RFC, the files of each month that has any, in name order
+	 */
+	public Map<Integer, SortedMap<Integer, List<File>>> findInput(List<? extends ArchiveConfigI> configs, int firstMonth, int lastMonth, boolean withComplete) {
+		Map<Integer, SortedMap<Integer, List<File>>> found = new HashMap<Integer, SortedMap<Integer, List<File>>>();
+		Map<String, List<ArchiveConfigI>> byDir = new LinkedHashMap<String, List<ArchiveConfigI>>();
+		Map<ArchiveConfigI, Pattern> patterns = new HashMap<ArchiveConfigI, Pattern>();
+		for (ArchiveConfigI cfg : configs) {
+			try {
+				patterns.put(cfg, patternFor(cfg));
+			} catch (RuntimeException e) {
+				logger.warn("Not scanning for {}: {}", cfg.getName(), e.getMessage());
+				continue;
+			}
+			found.put(cfg.getRfcCode(), new TreeMap<Integer, List<File>>());
+			addDir(byDir, cfg.getInputDir(), cfg);
+		}
+		// after all the input directories, so their files come first among equal names
+		Set<String> completeDirs = new HashSet<String>();
+		if (withComplete) {
+			for (ArchiveConfigI cfg : patterns.keySet()) {
+				String completeDir = completeDirOf(cfg);
+				if (completeDir != null && ! completeDir.equals(cfg.getInputDir())) {
+					completeDirs.add(completeDir);
+					addDir(byDir, completeDir, cfg);
+				}
+			}
+		}
+		
+		for (Map.Entry<String, List<ArchiveConfigI>> entry : byDir.entrySet()) {
+			String dir = entry.getKey();
+			List<ArchiveConfigI> dirConfigs = entry.getValue();
+			
+			if (completeDirs.contains(dir) && ! new File(dir).isDirectory()) {
+				// nothing archived and moved yet
+				logger.debug("No complete directory {}", dir);
+				continue;
+			}
+			
+			if (fileIndex != null && refreshIndex(dir, dirConfigs)) {
+				for (ArchiveConfigI cfg : dirConfigs) {
+					for (InputFile f : fileIndex.filesIn(dir, cfg.getRfcCode(), firstMonth, lastMonth)) {
+						addFound(found, cfg, monthIndex(f.getYear(), f.getMonth()), f.toFile());
+					}
+				}
+				continue;
+			}
+			
+			int count = 0;
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir));
+				try {
+					for (Path path : stream) {
+						count++;
+						String name = path.getFileName().toString();
+						for (ArchiveConfigI cfg : dirConfigs) {
+							Matcher m = patterns.get(cfg).matcher(name);
+							if ( ! m.matches()) {
+								continue;
+							}
+							int month = monthIndex(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+							if (month >= firstMonth && month <= lastMonth) {
+								addFound(found, cfg, month, path.toFile());
+							}
+						}
+					}
+				} finally {
+					stream.close();
+				}
+			} catch (IOException e) {
+				logger.warn("failed to scan " + dir, e);
+				continue;
+			}
+			logger.info("Scanned {} names in {} for {} configs", new Object[] {count, dir, dirConfigs.size()});
+		}
+		
+		for (SortedMap<Integer, List<File>> months : found.values()) {
+			for (List<File> files : months.values()) {
+				// names sort by date, so this is time order; the sort is stable, so input directory first
+				Collections.sort(files, BY_NAME);
+				for (int i = files.size() - 1; i > 0; i--) {
+					if (files.get(i).getName().equals(files.get(i - 1).getName())) {
+						files.remove(i);
+					}
+				}
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * As findInput, without the complete directories: only files not yet
+	 * archived and moved.
+	 */
+	public Map<Integer, SortedMap<Integer, List<File>>> findInput(List<? extends ArchiveConfigI> configs, int firstMonth, int lastMonth) {
+		return findInput(configs, firstMonth, lastMonth, false);
+	}
+	
+	/**
+	 * Input file names sort by date, whatever directory they are in.
+	 */
+	static final Comparator<File> BY_NAME = new Comparator<File>() {
+		@Override
+		public int compare(File a, File b) {
+			return a.getName().compareTo(b.getName());
+		}
+	};
+	
+	/**
+	 * @return the complete directory of the config, or null if it has none
+	 */
+	static String completeDirOf(ArchiveConfigI cfg) {
+		String completeDir = cfg.getCompleteDir();
+		if (completeDir == null || completeDir.trim().isEmpty()) {
+			return null;
+		}
+		return completeDir.trim();
+	}
+	
+	private static void addDir(Map<String, List<ArchiveConfigI>> byDir, String dir, ArchiveConfigI cfg) {
+		List<ArchiveConfigI> dirConfigs = byDir.get(dir);
+		if (dirConfigs == null) {
+			dirConfigs = new ArrayList<ArchiveConfigI>();
+			byDir.put(dir, dirConfigs);
+		}
+		if ( ! dirConfigs.contains(cfg)) {
+			dirConfigs.add(cfg);
+		}
+	}
+	
+	private static void addFound(Map<Integer, SortedMap<Integer, List<File>>> found, ArchiveConfigI cfg, int month, File f) {
+		SortedMap<Integer, List<File>> months = found.get(cfg.getRfcCode());
+		List<File> files = months.get(month);
+		if (files == null) {
+			files = new ArrayList<File>();
+			months.put(month, files);
+		}
+		files.add(f);
+	}
+	
+	/**
+	 * Bring the index of a directory up to date.  Nothing is listed if the
+	 * directory has not been modified since it was last indexed for these
+	 * configs; otherwise it is listed once, and only names not yet indexed
+	 * are matched and have their size and time read.  A config that is new
+	 * to the directory, or whose regex changed, has its entries matched
+	 * again from the whole listing.  Files rewritten in place do not change
+	 * the directory, and are not picked up.
+	 * 
+	 * @return false if the directory could not be indexed
+	 */
+	private boolean refreshIndex(String dir, List<? extends ArchiveConfigI> configs) {
+		Object lock = indexLocks.get(dir);
+		if (lock == null) {
+			indexLocks.putIfAbsent(dir, new Object());
+			lock = indexLocks.get(dir);
+		}
+		synchronized (lock) {
+			return refreshIndexLocked(dir, configs);
+		}
+	}
+	
+	private boolean refreshIndexLocked(String dir, List<? extends ArchiveConfigI> configs) {
+		try {
+			Path dirPath = Paths.get(dir);
+			long listed = System.currentTimeMillis();
+			long dirModified = Files.getLastModifiedTime(dirPath).toMillis();
+			InputDirScan scan = fileIndex.getScan(dir);
+			
+			// the configs whose entries were complete when the directory was last indexed
+			Set<String> current = new HashSet<String>();
+			if (scan != null && scan.getConfigs() != null) {
+				current.addAll(Arrays.asList(scan.getConfigs().split("\n")));
+			}
+			List<Integer> reindexed = new ArrayList<Integer>();
+			for (ArchiveConfigI cfg : configs) {
+				if ( ! current.contains(configKey(cfg))) {
+					reindexed.add(cfg.getRfcCode());
+				}
+			}
+			if (scan != null && scan.getModified() == dirModified && reindexed.isEmpty()) {
+				logger.debug("Index of {} is current", dir);
+				return true;
+			}
+			
+			List<Pattern> patterns = new ArrayList<Pattern>();
+			List<Set<String>> known = new ArrayList<Set<String>>();
+			Set<String> allKnown = new HashSet<String>();
+			for (ArchiveConfigI cfg : configs) {
+				patterns.add(Pattern.compile(cfg.getFileRegex()));
+				Set<String> names = reindexed.contains(cfg.getRfcCode())
+						? Collections.<String>emptySet() : fileIndex.getNames(dir, cfg.getRfcCode());
+				known.add(names);
+				allKnown.addAll(names);
+			}
+			
+			Set<String> present = new HashSet<String>();
+			List<InputFile> added = new ArrayList<InputFile>();
+			DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath);
+			try {
+				for (Path path : stream) {
+					String name = path.getFileName().toString();
+					present.add(name);
+					BasicFileAttributes attrs = null;
+					for (int i = 0; i < configs.size(); i++) {
+						if (known.get(i).contains(name)) {
+							continue;
+						}
+						Matcher m = patterns.get(i).matcher(name);
+						if (m.matches()) {
+							if (attrs == null) {
+								attrs = Files.readAttributes(path, BasicFileAttributes.class);
+							}
+							added.add(new InputFile(dir, name, attrs.size(), attrs.lastModifiedTime().toMillis(),
+									configs.get(i).getRfcCode(),
+									Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3))));
+						}
+					}
+				}
+			} finally {
+				stream.close();
+			}
+			
+			// a file added while listing, or later within the same tick of the
+			// directory's time, would not change it; list again next time
+			long after = Files.getLastModifiedTime(dirPath).toMillis();
+			long recorded = dirModified;
+			if (after != dirModified || listed - dirModified < MODIFIED_TICK_MILLIS) {
+				logger.debug("{} modified while listing, not recording its time", dir);
+				recorded = UNKNOWN_MODIFIED;
+			}
+			
+			allKnown.removeAll(present);
+			// other configs of the directory were not brought up to date, so are left out
+			fileIndex.refresh(dir, recorded, configsKey(configs), reindexed, added, allKnown);
+			logger.info("Indexed {}: {} names, {} new entries, {} removed, {} configs matched again", 
+					new Object[] {dir, present.size(), added.size(), allKnown.size(), reindexed.size()});
+			return true;
+		} catch (Exception e) {
+			logger.warn("failed to index " + dir, e);
+			return false;
+		}
+	}
+	
+	private static String configKey(ArchiveConfigI cfg) {
+		return cfg.getRfcCode() + "\t" + cfg.getFileRegex();
+	}
+	
+	/**
+	 * @return what the index of a directory was brought up to date for, as INPUT_DIR_SCAN keeps it
+	 */
+	static String configsKey(List<? extends ArchiveConfigI> configs) {
+		Set<String> keys = new TreeSet<String>();
+		for (ArchiveConfigI cfg : configs) {
+			keys.add(configKey(cfg));
+		}
+		return Joiner.on('\n').join(keys);
+	}
+	
+	@Transformer
+	public Message<List<File>> listInputFiles(
+			ArchiveConfigI cfg,
+			@Header(value=SCANNED_INPUT, required=false) Map<Integer, SortedMap<Integer, List<File>>> scanned,
+			@Header(value=RunTracker.RUN_ID, required=false) Long runId
+	) throws IOException {
+		
+		DateTime target = startOfPreviousMonth();
+		int month = monthIndex(target.getYear(), target.getMonthOfYear());
+		
+		if (scanned == null || ! scanned.containsKey(cfg.getRfcCode())) {
+			// not scanned with the others; this also rejects a bad regex
+			fileFilterFor(cfg);
+			scanned = findInput(Collections.singletonList(cfg), month, month, true);
+		}
+		List<File> found = scanned.get(cfg.getRfcCode()).get(month);
+		File[] listFiles = (found == null) ? new File[0] : found.toArray(new File[found.size()]);
         logger.info("Found {} files", listFiles.length);
         
-        // this sort uses the natural order for files, which will result in ascending time order for files within the same
-        // directory as long as the file names differ only by date represented as yyyy-MM-dd format (as required for file
-        // name parsing).
-        Arrays.sort(listFiles);
+        // already in name order, which is ascending time order as long as the file names differ only by date
+        // represented as yyyy-MM-dd format (as required for file name parsing), whichever directory they are in.
         
         List<File> payload = Arrays.asList(listFiles);
         
 		MessageBuilder<List<File>> mb = MessageBuilder.withPayload(payload);
 		mb.setHeader("config", cfg);
+		// the other headers are not copied, the scan above all
+		mb.setHeader(RunTracker.RUN_ID, runId);
 		
 		return mb.build();
 	}
@@ -134,7 +509,7 @@ public class FileFetcher {
 		return firstOfMonth;
 	}
 	
-	protected int daysInMonth(int year, int month) {
+	public static int daysInMonth(int year, int month) {
 		DateTime dt = new DateTime(year, month, 1, 12, 0);
     	dt = dt.dayOfMonth().withMaximumValue();
     	return dt.getDayOfMonth();
@@ -143,12 +518,16 @@ public class FileFetcher {
 	@Splitter
 	public List<Message<File>> split(
 			List<File> payload,
-			@Header(value="config", required=true) ArchiveConfig cfg
+			@Header(value="config", required=true) ArchiveConfigI cfg
 	) {
 
-		Collections.sort(payload);
+		// time order, with a month rebuilt from both input and complete directories
+		Collections.sort(payload, BY_NAME);
 		
-		List<Message<File>> value = new ArrayList<Message<File>>(payload.size());
+		List<MessageBuilder<File>> value = new ArrayList<MessageBuilder<File>>(payload.size());
+		List<String> outputs = new ArrayList<String>(payload.size());
+		// files per output, to number each group 1..n so grib-agg knows when it has all of them
+		Map<String, Integer> fileCounts = new HashMap<String, Integer>();
 				
         Pattern pat = Pattern.compile(cfg.getFileRegex());
 
@@ -185,13 +564,72 @@ public class FileFetcher {
         	mb.setHeader("outputFile", ofName);
         	logger.debug("Set output file for {} to {}", f, ofName);
         	
-        	mb.pushSequenceDetails(ofName, day, daysInMonth(year, month));
+        	Integer count = fileCounts.get(ofName);
+        	fileCounts.put(ofName, (count == null) ? 1 : count + 1);
         	
-        	value.add(mb.build());
+        	value.add(mb);
+        	outputs.add(ofName);
         	
         }
         
-        return value;
+        // input is hourly, so a sequence numbered by day would hold duplicates and never match the group size
+        List<Message<File>> messages = new ArrayList<Message<File>>(value.size());
+        Map<String, Integer> sequence = new HashMap<String, Integer>();
+        // by name, since the inputs of released lists may have moved to the complete directory since
+        Map<String, Set<String>> pending = new HashMap<String, Set<String>>();
+        for (String ofName : fileCounts.keySet()) {
+        	Set<String> held = new HashSet<String>();
+        	int last = 0;
+        	if (releasedBatches != null) {
+        		if (releasedBatches.isFailed(ofName)) {
+        			logger.info("A write to {} failed, releasing it again from the start", ofName);
+        			releasedBatches.forget(ofName);
+        		}
+        		for (File f : releasedBatches.files(ofName)) {
+        			held.add(f.getName());
+        		}
+        	}
+        	if (messageGroupStore != null) {
+        		MessageGroup group = messageGroupStore.getMessageGroup(ofName);
+        		for (Message<?> message : group.getMessages()) {
+        			held.add(((File) message.getPayload()).getName());
+        			Integer number = message.getHeaders().getSequenceNumber();
+        			last = Math.max(last, (number == null) ? 0 : number);
+        		}
+        		if (group.size() > 0) {
+        			int count = held.size();
+        			for (int i = 0; i < value.size(); i++) {
+        				if (outputs.get(i).equals(ofName) && ! held.contains(payload.get(i).getName())) {
+        					count++;
+        				}
+        			}
+        			if (count == held.size()) {
+        				// a complete group is released by StoredGroupRecovery at startup, so this one is still short
+        				logger.info("Nothing new for {}, {} files gathered", ofName, count);
+        			} else {
+        				logger.info("Resuming {} with {} of {} files already gathered", new Object[] {ofName, held.size(), count});
+        			}
+        			fileCounts.put(ofName, count);
+        		}
+        	}
+        	sequence.put(ofName, last);
+        	pending.put(ofName, held);
+        }
+        for (int i = 0; i < value.size(); i++) {
+        	MessageBuilder<File> mb = value.get(i);
+        	String ofName = outputs.get(i);
+        	if (pending.get(ofName).contains(payload.get(i).getName())) {
+        		continue;
+        	}
+        	int number = sequence.get(ofName) + 1;
+        	sequence.put(ofName, number);
+        	int count = fileCounts.get(ofName);
+        	mb.setHeader(FileListAggregator.FILE_COUNT, count);
+        	mb.pushSequenceDetails(ofName, number, count);
+        	messages.add(mb.build());
+        }
+        
+        return messages;
 		
 	}
 	
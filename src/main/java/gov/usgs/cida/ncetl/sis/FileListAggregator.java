@@ -0,0 +1,123 @@
+package gov.usgs.cida.ncetl.sis;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.Message;
+import org.springframework.integration.annotation.Aggregator;
+import org.springframework.integration.annotation.ReleaseStrategy;
+import org.springframework.integration.support.MessageBuilder;
+
+/**
+ * Release strategy and output of grib-agg.  The splitter puts the number of
+ * input files found for each output in the fileCount header, and a group is
+ * released as soon as that many have arrived, rather than waiting for the
+ * group to expire.
+ *
+ * With a sub-batch size, a month is released in lists of that many files as
+ * they arrive, so writing starts before the month is gathered.  Each list
+ * carries its index in the batchIndex header, and the last one lastBatch
+ * true; the archiver appends every list after the first.
+ *
+ * Groups can outlive a run in a persistent store, whose messages keep only
+ * the file and its correlation headers.  The largest file count in a group is
+ * the one that holds, and the output takes its config from the messages of
+ * the current run.  What has been released of a month is kept in the same
+ * store (see ReleasedBatches), so its sub-batches are numbered on across a
+ * restart.
+ */
+public class FileListAggregator {
+
+	public static final String FILE_COUNT = "fileCount";
+	public static final String BATCH_INDEX = "batchIndex";
+	public static final String LAST_BATCH = "lastBatch";
+	private static final String[] COPIED = {"config", "rfc", "outputFile", "year", "month", RunTracker.RUN_ID};
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private int subBatchSize = 0;
+	private ReleasedBatches releasedBatches = new ReleasedBatches();
+
+	/**
+	 * Files per released list; 0 to release each output whole.
+	 */
+	public void setSubBatchSize(int subBatchSize) {
+		this.subBatchSize = subBatchSize;
+	}
+
+	public void setReleasedBatches(ReleasedBatches releasedBatches) {
+		this.releasedBatches = releasedBatches;
+	}
+
+	@ReleaseStrategy
+	public boolean canRelease(List<Message<?>> messages) {
+		Message<?> first = messages.get(0);
+		Integer total = fileCount(messages);
+		if (total == null) {
+			logger.warn("No {} header on {}, cannot release until expired", FILE_COUNT, first);
+			return false;
+		}
+		if (releasedBatches.fileCount(keyOf(first)) + messages.size() >= total) {
+			return true;
+		}
+		return subBatchSize > 0 && messages.size() >= subBatchSize;
+	}
+
+	@Aggregator
+	public Message<List<File>> aggregate(List<Message<File>> messages) {
+		List<File> files = new ArrayList<File>(messages.size());
+		for (Message<File> message : messages) {
+			files.add(message.getPayload());
+		}
+		Collections.sort(files, FileFetcher.BY_NAME);
+
+		Message<File> first = messages.get(0);
+		String key = keyOf(first);
+		Integer total = fileCount(messages);
+		// headers that differ between messages are dropped from the output, and stored ones have no config
+		Message<File> current = first;
+		for (Message<File> message : messages) {
+			if (message.getHeaders().containsKey("config")) {
+				current = message;
+			}
+		}
+
+		boolean last = (total == null) || releasedBatches.fileCount(key) + files.size() >= total;
+		int index;
+		if (last) {
+			index = releasedBatches.nextIndex(key);
+			releasedBatches.forget(key);
+		} else {
+			index = releasedBatches.add(key, files);
+		}
+		logger.debug("Releasing {} files of {} for {} as list {}", new Object[] {files.size(), total, key, index});
+
+		MessageBuilder<List<File>> mb = MessageBuilder.withPayload(files);
+		for (String name : COPIED) {
+			mb.setHeader(name, current.getHeaders().get(name));
+		}
+		return mb
+				.setHeader(BATCH_INDEX, index)
+				.setHeader(LAST_BATCH, last)
+				.build();
+	}
+
+	private static Integer fileCount(List<? extends Message<?>> messages) {
+		Integer total = null;
+		for (Message<?> message : messages) {
+			Integer count = message.getHeaders().get(FILE_COUNT, Integer.class);
+			if (count != null && (total == null || count > total)) {
+				total = count;
+			}
+		}
+		return total;
+	}
+	
+	private static String keyOf(Message<?> message) {
+		return String.valueOf(message.getHeaders().getCorrelationId());
+	}
+}
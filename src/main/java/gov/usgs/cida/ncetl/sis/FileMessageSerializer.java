@@ -0,0 +1,112 @@
+package gov.usgs.cida.ncetl.sis;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.core.serializer.Deserializer;
+import org.springframework.core.serializer.Serializer;
+import org.springframework.integration.Message;
+import org.springframework.integration.MessageHeaders;
+import org.springframework.integration.support.MessageBuilder;
+
+/**
+ * Writes the file messages held by grib-agg to the message store as the
+ * file path and the few headers needed to correlate and release them, a
+ * hundred bytes or so, instead of Java serialization of the whole message.
+ * The config header, an entity with its mappings and history, is left out;
+ * FileListAggregator takes it from the messages of the current run.  The
+ * record of ReleasedBatches is stored the same way.
+ *
+ * A message read back is built anew, so it has an id of its own; the id and
+ * timestamp it was stored with are in the STORED_ID and STORED_TIMESTAMP
+ * headers.  Nothing removes single messages from the store, which would need
+ * the stored id, only whole groups.
+ */
+public class FileMessageSerializer implements Serializer<Message<?>>, Deserializer<Message<?>> {
+
+	private static final int VERSION = 1;
+	private static final char INT = 'I';
+	private static final char STRING = 'S';
+
+	/**
+	 * Header holding the id a read message was stored under.
+	 */
+	public static final String STORED_ID = "storedId";
+	public static final String STORED_TIMESTAMP = "storedTimestamp";
+
+	static final String[] HEADERS = {
+		"rfc", "outputFile", "year", "month", "day",
+		FileListAggregator.FILE_COUNT, FileListAggregator.BATCH_INDEX, ReleasedBatches.FAILED,
+		MessageHeaders.CORRELATION_ID, MessageHeaders.SEQUENCE_NUMBER, MessageHeaders.SEQUENCE_SIZE
+	};
+
+	@Override
+	public void serialize(Message<?> message, OutputStream outputStream) throws IOException {
+		if (!(message.getPayload() instanceof File)) {
+			throw new IOException("Only file messages are stored, got " + message.getPayload().getClass());
+		}
+		MessageHeaders headers = message.getHeaders();
+		List<String> names = new ArrayList<String>(HEADERS.length);
+		for (String name : HEADERS) {
+			Object value = headers.get(name);
+			if (value instanceof Integer || value instanceof String) {
+				names.add(name);
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(outputStream);
+		out.writeByte(VERSION);
+		out.writeUTF(((File) message.getPayload()).getPath());
+		UUID id = headers.getId();
+		out.writeLong(id.getMostSignificantBits());
+		out.writeLong(id.getLeastSignificantBits());
+		out.writeLong(headers.getTimestamp());
+		out.writeByte(names.size());
+		for (String name : names) {
+			Object value = headers.get(name);
+			out.writeUTF(name);
+			if (value instanceof Integer) {
+				out.writeChar(INT);
+				out.writeInt((Integer) value);
+			} else {
+				out.writeChar(STRING);
+				out.writeUTF((String) value);
+			}
+		}
+		out.flush();
+	}
+
+	@Override
+	public Message<?> deserialize(InputStream inputStream) throws IOException {
+		DataInputStream in = new DataInputStream(inputStream);
+		int version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unknown stored message version " + version);
+		}
+		MessageBuilder<File> mb = MessageBuilder.withPayload(new File(in.readUTF()));
+		UUID id = new UUID(in.readLong(), in.readLong());
+		long timestamp = in.readLong();
+		int count = in.readByte();
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			char type = in.readChar();
+			if (type == INT) {
+				mb.setHeader(name, in.readInt());
+			} else if (type == STRING) {
+				mb.setHeader(name, in.readUTF());
+			} else {
+				throw new IOException("Unknown header type " + type + " for " + name);
+			}
+		}
+		mb.setHeader(STORED_ID, id);
+		mb.setHeader(STORED_TIMESTAMP, timestamp);
+		return mb.build();
+	}
+}
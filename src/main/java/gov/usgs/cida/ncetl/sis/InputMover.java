@@ -0,0 +1,186 @@
+package gov.usgs.cida.ncetl.sis;
+
+import gov.usgs.cida.data.grib.NetCDFArchiver;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.annotation.Header;
+import org.springframework.integration.annotation.Transformer;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * Moves the input files of an archive that has been written to the
+ * config's complete directory, so they are not listed again by later runs.
+ * Only files the archive consumed are moved.  Configs without a complete
+ * directory are left alone, as are inputs read from the complete directory
+ * itself when a month is rebuilt.
+ *
+ * Files are moved in batches.  Before each batch, the moves are written to a
+ * journal in the complete directory and synced; the journal is removed once
+ * the batch is done.  A journal left by a crash is finished on the next
+ * move to that directory, so no file is left half way.
+ */
+public class InputMover {
+
+	static final String JOURNAL_SUFFIX = ".journal";
+	private static final String SEPARATOR = "\t";
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private NetCDFArchiver archiver;
+	private int batchSize = 100;
+
+	public void setArchiver(NetCDFArchiver archiver) {
+		this.archiver = archiver;
+	}
+
+	/**
+	 * Number of files moved under one journal.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the archive, unchanged
+	 */
+	@Transformer
+	public File moveConsumed(
+			File output,
+			@Header(value="config", required=true) ArchiveConfigI cfg
+	) throws IOException {
+		List<File> consumed = archiver.takeConsumed(output);
+		String completeDir = cfg.getCompleteDir();
+		if (completeDir == null || completeDir.trim().isEmpty()) {
+			return output;
+		}
+		move(consumed, new File(completeDir.trim()), output.getName());
+		return output;
+	}
+
+	/**
+	 * Move files into dir, finishing any moves journaled there earlier.
+	 */
+	public synchronized void move(List<File> files, File dir, String name) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create complete directory " + dir);
+		}
+		recover(dir);
+
+		int moved = 0;
+		for (int start = 0; start < files.size(); start += batchSize) {
+			List<File[]> batch = new ArrayList<File[]>(batchSize);
+			for (File f : files.subList(start, Math.min(start + batchSize, files.size()))) {
+				File target = new File(dir, f.getName());
+				// a month rebuilt after it was archived reads some of its inputs from here
+				if ( ! target.getAbsoluteFile().toPath().normalize().equals(f.getAbsoluteFile().toPath().normalize())) {
+					batch.add(new File[] {f, target});
+				}
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+			File journal = new File(dir, "." + name + "." + start + JOURNAL_SUFFIX);
+			writeJournal(journal, batch);
+			for (File[] move : batch) {
+				if (move(move[0], move[1])) {
+					moved++;
+				}
+			}
+			if (!journal.delete()) {
+				logger.warn("Could not remove journal {}", journal);
+			}
+		}
+		logger.info("Moved {} of {} inputs of {} to {}", new Object[] {moved, files.size(), name, dir});
+	}
+
+	/**
+	 * Finish the moves of any journal left in dir.
+	 */
+	void recover(File dir) throws IOException {
+		File[] journals = dir.listFiles();
+		if (journals == null) {
+			return;
+		}
+		for (File journal : journals) {
+			if (!journal.getName().endsWith(JOURNAL_SUFFIX)) {
+				continue;
+			}
+			logger.info("Finishing moves in {}", journal);
+			for (File[] move : readJournal(journal)) {
+				move(move[0], move[1]);
+			}
+			if (!journal.delete()) {
+				throw new IOException("Could not remove journal " + journal);
+			}
+		}
+	}
+
+	/**
+	 * @return false if source was already gone
+	 */
+	private boolean move(File source, File target) throws IOException {
+		if (!source.exists()) {
+			return false;
+		}
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			// other file system: copied, so a crash can leave a partial target, which the journal replaces
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return true;
+	}
+
+	private void writeJournal(File journal, List<File[]> batch) throws IOException {
+		FileOutputStream out = new FileOutputStream(journal);
+		Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+		try {
+			for (File[] move : batch) {
+				writer.write(move[0].getAbsolutePath());
+				writer.write(SEPARATOR);
+				writer.write(move[1].getAbsolutePath());
+				writer.write('\n');
+			}
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			Closeables.closeQuietly(writer);
+		}
+	}
+
+	private List<File[]> readJournal(File journal) throws IOException {
+		List<File[]> moves = new ArrayList<File[]>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journal), Charsets.UTF_8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] paths = line.split(SEPARATOR);
+				// a line cut short by the crash was never acted on
+				if (paths.length == 2) {
+					moves.add(new File[] {new File(paths[0]), new File(paths[1])});
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return moves;
+	}
+}
@@ -1,7 +1,7 @@
 package gov.usgs.cida.ncetl.sis;
 
 import gov.usgs.cida.data.grib.ArchiveInfoI;
-import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
 
 import java.io.FileNotFoundException;
 
@@ -12,9 +12,9 @@ public class InputNotFoundException
 	private static final long serialVersionUID = 1L;
 	
 	private int rfcCode;
-	private ArchiveConfig config;
+	private ArchiveConfigI config;
 
-	public InputNotFoundException(String fn, int rc, ArchiveConfig cfg) {
+	public InputNotFoundException(String fn, int rc, ArchiveConfigI cfg) {
 		super(fn);
 		rfcCode = rc;
 		config = cfg;
@@ -26,7 +26,7 @@ public class InputNotFoundException
 	}
 
 	@Override
-	public ArchiveConfig getConfig() {
+	public ArchiveConfigI getConfig() {
 		return config;
 	}
 
@@ -0,0 +1,146 @@
+package gov.usgs.cida.ncetl.sis;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.Message;
+import org.springframework.integration.MessageHeaders;
+import org.springframework.integration.MessagingException;
+import org.springframework.integration.store.MessageGroupStore;
+import org.springframework.integration.store.SimpleMessageStore;
+import org.springframework.integration.support.MessageBuilder;
+
+/**
+ * What grib-agg has released of each output being released in sub-batches:
+ * the files and the index of the list each went out in.  The record is kept
+ * in the message store, as a group of its own beside the output's group, so
+ * a month cut off by a restart goes on from the next sub-batch rather than
+ * starting over at 0 and dropping those already written.
+ *
+ * A sub-batch whose write failed marks the record.  The next run that splits
+ * the month drops a marked record, so the month is released again from all
+ * of its files and rebuilt.  The record is dropped too once the last list of
+ * the month is released.
+ */
+public class ReleasedBatches {
+
+	static final String GROUP_SUFFIX = ".released";
+	static final String FAILED = "batchFailed";
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private MessageGroupStore messageGroupStore = new SimpleMessageStore();
+	// read through, since canRelease asks for every message that arrives
+	private final Map<String, Record> records = new HashMap<String, Record>();
+
+	/**
+	 * The store of grib-agg; by default the record is kept in memory only.
+	 */
+	public void setMessageGroupStore(MessageGroupStore messageGroupStore) {
+		this.messageGroupStore = messageGroupStore;
+	}
+
+	private static class Record {
+		final Set<File> files = new HashSet<File>();
+		int lists = 0;
+		boolean failed = false;
+	}
+
+	private Record record(String output) {
+		Record record = records.get(output);
+		if (record != null) {
+			return record;
+		}
+		record = new Record();
+		for (Message<?> message : messageGroupStore.getMessageGroup(output + GROUP_SUFFIX).getMessages()) {
+			if (message.getHeaders().containsKey(FAILED)) {
+				record.failed = true;
+				continue;
+			}
+			record.files.add((File) message.getPayload());
+			Integer index = message.getHeaders().get(FileListAggregator.BATCH_INDEX, Integer.class);
+			if (index != null && index >= record.lists) {
+				record.lists = index + 1;
+			}
+		}
+		records.put(output, record);
+		return record;
+	}
+
+	/**
+	 * @return the files of an output already released
+	 */
+	public synchronized Set<File> files(String output) {
+		return new HashSet<File>(record(output).files);
+	}
+
+	public synchronized int fileCount(String output) {
+		return record(output).files.size();
+	}
+
+	public synchronized boolean isFailed(String output) {
+		return record(output).failed;
+	}
+
+	/**
+	 * @return the index the next list of an output is released as
+	 */
+	public synchronized int nextIndex(String output) {
+		return record(output).lists;
+	}
+
+	/**
+	 * Record a list about to be released.
+	 *
+	 * @return its index
+	 */
+	public synchronized int add(String output, Iterable<File> files) {
+		Record record = record(output);
+		int index = record.lists++;
+		for (File f : files) {
+			record.files.add(f);
+			messageGroupStore.addMessageToGroup(output + GROUP_SUFFIX,
+					MessageBuilder.withPayload(f).setHeader(FileListAggregator.BATCH_INDEX, index).build());
+		}
+		return index;
+	}
+
+	/**
+	 * Drop the record of an output, when its last list is released or a run
+	 * starts it over.
+	 */
+	public synchronized void forget(String output) {
+		records.remove(output);
+		messageGroupStore.removeMessageGroup(output + GROUP_SUFFIX);
+	}
+
+	/**
+	 * Mark the record of the output a failed write was for, if it is being
+	 * released in sub-batches.  Errors without an output are ignored.
+	 */
+	public synchronized void failed(Message<?> error) {
+		MessageHeaders headers = error.getHeaders();
+		if (error.getPayload() instanceof MessagingException
+				&& ((MessagingException) error.getPayload()).getFailedMessage() != null) {
+			headers = ((MessagingException) error.getPayload()).getFailedMessage().getHeaders();
+		}
+		String output = headers.get("outputFile", String.class);
+		if (output == null || headers.get(FileListAggregator.BATCH_INDEX) == null) {
+			return;
+		}
+		Record record = record(output);
+		if (record.lists == 0 || record.failed) {
+			// already released whole, or marked
+			return;
+		}
+		record.failed = true;
+		messageGroupStore.addMessageToGroup(output + GROUP_SUFFIX,
+				MessageBuilder.withPayload(new File(output)).setHeader(FAILED, 1).build());
+		logger.info("Write to {} failed, its month will be released again from the start", output);
+	}
+}
@@ -0,0 +1,234 @@
+package gov.usgs.cida.ncetl.sis;
+
+import gov.usgs.cida.ncetl.jpa.EtlHistoryManager;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.Lifecycle;
+import org.springframework.integration.Message;
+import org.springframework.integration.core.PollableChannel;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.support.CronTrigger;
+
+/**
+ * Daemon mode: keeps the context up and starts a batch run of the flow on a
+ * cron schedule, instead of a new JVM per run.  A run is what Main does in
+ * batch mode: the config-fetcher is started with its latch set, so it polls
+ * once, and the run is over when finis gets the gathered outcomes or the
+ * run timeout passes.
+ *
+ * Runs happen one at a time on the scheduler thread.  A run asked for over
+ * JMX while one is going is refused, and the next scheduled time is taken
+ * from the end of the previous run, so runs never overlap.  A run that
+ * times out may still have lists being written; their outcomes carry the
+ * id of that run (see RunTracker) and do not count for the next.  Each run ends
+ * with a line in ETL_HISTORY that belongs to no config; the outcome of each
+ * config is recorded by the flow as in batch mode.
+ */
+@ManagedResource(objectName="gov.usgs.cida.ncetl:name=runScheduler", description="Scheduled batch runs")
+public class RunScheduler {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private LatchTrigger trigger;
+	private Lifecycle configFetcher;
+	private FileFetcher fileFetcher;
+	private RunTracker runTracker;
+	private EtlHistoryManager historyManager;
+	private PollableChannel finis;
+	private PollableChannel errorQueue;
+	private String cron = "0 0 2 2 * *";
+
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	private ThreadPoolTaskScheduler scheduler;
+	private CountDownLatch stopped;
+	private volatile String lastOutcome = null;
+
+	/**
+	 * The trigger of the config-fetcher poller.
+	 */
+	public void setTrigger(LatchTrigger trigger) {
+		this.trigger = trigger;
+	}
+
+	public void setConfigFetcher(Lifecycle configFetcher) {
+		this.configFetcher = configFetcher;
+	}
+
+	/**
+	 * Told the time at the start of each run, so that it takes the month
+	 * before the run rather than before the daemon started.
+	 */
+	public void setFileFetcher(FileFetcher fileFetcher) {
+		this.fileFetcher = fileFetcher;
+	}
+
+	public void setRunTracker(RunTracker runTracker) {
+		this.runTracker = runTracker;
+	}
+
+	public void setHistoryManager(EtlHistoryManager historyManager) {
+		this.historyManager = historyManager;
+	}
+
+	public void setFinis(PollableChannel finis) {
+		this.finis = finis;
+	}
+
+	public void setErrorQueue(PollableChannel errorQueue) {
+		this.errorQueue = errorQueue;
+	}
+
+	/**
+	 * When to run, as a Spring cron expression (with seconds); by default 2am
+	 * on the 2nd of each month.
+	 */
+	public void setCron(String cron) {
+		this.cron = cron;
+	}
+
+	@ManagedAttribute(description="Cron expression of the scheduled runs")
+	public String getCron() {
+		return cron;
+	}
+
+	@ManagedAttribute(description="Whether a run is going")
+	public boolean isRunning() {
+		return running.get();
+	}
+
+	@ManagedAttribute(description="Outcome of the last run")
+	public String getLastOutcome() {
+		return lastOutcome;
+	}
+
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		stopped = new CountDownLatch(1);
+		scheduler = new ThreadPoolTaskScheduler();
+		scheduler.setPoolSize(1);
+		scheduler.setThreadNamePrefix("scheduled-run-");
+		scheduler.initialize();
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				runOnce("scheduled");
+			}
+		}, new CronTrigger(cron));
+		logger.info("Runs scheduled for {}", cron);
+	}
+
+	public void stop() {
+		ThreadPoolTaskScheduler s;
+		synchronized (this) {
+			s = scheduler;
+			scheduler = null;
+		}
+		if (s == null) {
+			return;
+		}
+		// a run in progress is interrupted; its groups are kept in the message store
+		s.shutdown();
+		stopped.countDown();
+	}
+
+	/**
+	 * Wait until stopped.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		CountDownLatch latch;
+		synchronized (this) {
+			latch = stopped;
+		}
+		if (latch != null) {
+			latch.await();
+		}
+	}
+
+	/**
+	 * Start a run now, unless one is going.
+	 */
+	@ManagedOperation(description="Start a run now, unless one is going")
+	public String runNow() {
+		ThreadPoolTaskScheduler s;
+		synchronized (this) {
+			s = scheduler;
+		}
+		if (s == null) {
+			return "not started";
+		}
+		if (running.get()) {
+			return "a run is already going";
+		}
+		s.execute(new Runnable() {
+			@Override
+			public void run() {
+				runOnce("requested");
+			}
+		});
+		return "run requested";
+	}
+
+	/**
+	 * Do one run and wait for it to finish.
+	 *
+	 * @return the outcome, also recorded in ETL_HISTORY
+	 */
+	String runOnce(String why) {
+		if ( ! running.compareAndSet(false, true)) {
+			logger.info("Not starting {} run, a run is already going", why);
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		String outcome;
+		try {
+			// leftovers of a run that timed out would end this one early
+			while (finis.receive(0) != null) {}
+			while (errorQueue.receive(0) != null) {}
+
+			runTracker.reset();
+			fileFetcher.setNow(new Date());
+			logger.info("Starting {} run", why);
+			trigger.enable();
+			configFetcher.stop();
+			configFetcher.start();
+
+			Message<?> msg = finis.receive(runTracker.getRunTimeout());
+			int errors = 0;
+			while (errorQueue.receive(0) != null) {
+				errors++;
+			}
+			if (msg == null) {
+				outcome = String.format("%s run did not finish within %d ms, %d errors",
+						why, runTracker.getRunTimeout(), errors);
+			} else {
+				outcome = String.format("%s run of %d configs finished in %d s, %d errors",
+						why, runTracker.getExpected(), (System.currentTimeMillis() - start) / 1000, errors);
+			}
+		} catch (RuntimeException e) {
+			logger.error("Run failed", e);
+			outcome = why + " run failed: " + e;
+		} finally {
+			configFetcher.stop();
+			running.set(false);
+		}
+		logger.info("{}, started {}", outcome, new DateTime(start));
+		lastOutcome = outcome;
+		try {
+			historyManager.recordRun(outcome);
+		} catch (RuntimeException e) {
+			logger.warn("Could not record run outcome", e);
+		}
+		return outcome;
+	}
+}
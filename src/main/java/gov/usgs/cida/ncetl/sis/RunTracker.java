@@ -0,0 +1,124 @@
+package gov.usgs.cida.ncetl.sis;
+
+import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.Message;
+import org.springframework.integration.annotation.ReleaseStrategy;
+import org.springframework.integration.annotation.ServiceActivator;
+
+/**
+ * Knows when a batch run is done.  The scan stage tells it how many configs
+ * were found; each config ends in exactly one outcome on gather-chan (written,
+ * no input, or error, even one before writing: see ConfigDispatcher), and
+ * gather-agg releases the run to finis when that many outcomes have arrived;
+ * outcomes of sub-batches other than a month's last are not counted.  An error outcome with no RFC before the count
+ * is known, such as the config query failing, ends the run at once.
+ *
+ * Each run has an id, put in the runId header of its scan and carried on to
+ * its outcomes, so that the late outcomes of a run that timed out are not
+ * counted for the next one.  Outcomes without the header are counted.
+ */
+public class RunTracker {
+
+	public static final String CORRELATION = "run";
+	public static final String RUN_ID = "runId";
+	/**
+	 * Run id of outcomes that belong to no run, such as those of groups
+	 * released by StoredGroupRecovery.
+	 */
+	public static final long NO_RUN = -1;
+	private static final int UNKNOWN = -1;
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final AtomicInteger expected = new AtomicInteger(UNKNOWN);
+	private final AtomicLong runId = new AtomicLong(0);
+	private long runTimeout = 6L * 60 * 60 * 1000;
+
+	/**
+	 * How long Main waits for a run to finish before giving up on it.  Every
+	 * config ends in an outcome, so this only guards against a lost message.
+	 */
+	public void setRunTimeout(long runTimeout) {
+		this.runTimeout = runTimeout;
+	}
+
+	public long getRunTimeout() {
+		return runTimeout;
+	}
+
+	/**
+	 * Forget the previous run and start counting for a new one.
+	 */
+	public void reset() {
+		expected.set(UNKNOWN);
+		runId.incrementAndGet();
+	}
+
+	/**
+	 * The id of the current run, for the runId header.
+	 */
+	public long getRunId() {
+		return runId.get();
+	}
+
+	private boolean isCurrent(Message<?> outcome) {
+		Long id = outcome.getHeaders().get(RUN_ID, Long.class);
+		return id == null || id == runId.get();
+	}
+
+	/**
+	 * Record the number of outcomes to wait for.
+	 *
+	 * @return an outcome for gather-chan if there is nothing to do, otherwise
+	 * null
+	 */
+	@ServiceActivator
+	public String start(List<ArchiveConfig> configs) {
+		if (configs.isEmpty()) {
+			logger.info("No active configs, nothing to do");
+			expected.set(1);
+			return "no active configs";
+		}
+		logger.info("Run started, expecting {} outcomes", configs.size());
+		expected.set(configs.size());
+		return null;
+	}
+
+	public int getExpected() {
+		return expected.get();
+	}
+
+	@ReleaseStrategy
+	public boolean canRelease(List<Message<?>> outcomes) {
+		int count = expected.get();
+		if (count == UNKNOWN) {
+			for (Message<?> outcome : outcomes) {
+				if (isCurrent(outcome) && !outcome.getHeaders().containsKey("rfc")) {
+					logger.info("Run failed before the configs were scanned");
+					return true;
+				}
+			}
+			return false;
+		}
+		int finished = 0;
+		for (Message<?> outcome : outcomes) {
+			if (!isCurrent(outcome)) {
+				logger.debug("Outcome of run {} ignored: {}", outcome.getHeaders().get(RUN_ID), outcome.getPayload());
+				continue;
+			}
+			// an earlier sub-batch of a month is not the month's outcome
+			if (!Boolean.FALSE.equals(outcome.getHeaders().get(FileListAggregator.LAST_BATCH))) {
+				finished++;
+			}
+		}
+		logger.debug("{} of {} outcomes", finished, count);
+		return finished >= count;
+	}
+}
@@ -0,0 +1,100 @@
+package gov.usgs.cida.ncetl.sis;
+
+import gov.usgs.cida.ncetl.jpa.ConfigFetcherI;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.Message;
+import org.springframework.integration.MessageChannel;
+import org.springframework.integration.store.MessageGroup;
+import org.springframework.integration.store.MessageGroupStore;
+import org.springframework.integration.support.MessageBuilder;
+
+/**
+ * Releases at startup the groups of grib-agg that the message store holds
+ * complete: a process that stopped between storing the last file of a month
+ * and releasing it leaves one, and no file will arrive to have it checked
+ * again.  Each is aggregated as grib-agg would and sent on to be written,
+ * with the config of its RFC, since stored messages have none.
+ */
+public class StoredGroupRecovery {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private MessageGroupStore messageGroupStore;
+	private FileListAggregator aggregator;
+	private ConfigFetcherI configFetcher;
+	private MessageChannel outputChannel;
+
+	public void setMessageGroupStore(MessageGroupStore messageGroupStore) {
+		this.messageGroupStore = messageGroupStore;
+	}
+
+	public void setAggregator(FileListAggregator aggregator) {
+		this.aggregator = aggregator;
+	}
+
+	public void setConfigFetcher(ConfigFetcherI configFetcher) {
+		this.configFetcher = configFetcher;
+	}
+
+	/**
+	 * Where grib-agg sends what it releases.
+	 */
+	public void setOutputChannel(MessageChannel outputChannel) {
+		this.outputChannel = outputChannel;
+	}
+
+	/**
+	 * @return the number of groups released
+	 */
+	public int recover() {
+		List<MessageGroup> complete = new ArrayList<MessageGroup>();
+		for (Iterator<MessageGroup> it = messageGroupStore.iterator(); it.hasNext(); ) {
+			MessageGroup group = it.next();
+			if (String.valueOf(group.getGroupId()).endsWith(ReleasedBatches.GROUP_SUFFIX) || group.size() == 0) {
+				continue;
+			}
+			if (aggregator.canRelease(new ArrayList<Message<?>>(group.getMessages()))) {
+				complete.add(group);
+			}
+		}
+
+		int released = 0;
+		for (MessageGroup group : complete) {
+			List<Message<File>> messages = new ArrayList<Message<File>>(group.size());
+			for (Message<?> message : group.getMessages()) {
+				@SuppressWarnings("unchecked")
+				Message<File> stored = (Message<File>) message;
+				messages.add(stored);
+			}
+			Integer rfc = messages.get(0).getHeaders().get("rfc", Integer.class);
+			Object config;
+			try {
+				config = (rfc == null) ? null : configFetcher.settings(rfc);
+			} catch (RuntimeException e) {
+				logger.warn("No config for RFC " + rfc + ", leaving " + group.getGroupId() + " in the store", e);
+				continue;
+			}
+			if (config == null) {
+				logger.warn("No config for stored group {}, left in the store", group.getGroupId());
+				continue;
+			}
+			logger.info("Releasing {} files of {} left complete in the store", messages.size(), group.getGroupId());
+			Message<List<File>> list = aggregator.aggregate(messages);
+			messageGroupStore.removeMessageGroup(group.getGroupId());
+			outputChannel.send(MessageBuilder.fromMessage(list)
+					.setHeader("config", config)
+					// written for no run, so no run counts its outcome
+					.setHeader(RunTracker.RUN_ID, RunTracker.NO_RUN)
+					.build());
+			released++;
+		}
+		return released;
+	}
+}
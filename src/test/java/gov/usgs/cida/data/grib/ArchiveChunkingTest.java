@@ -0,0 +1,37 @@
+package gov.usgs.cida.data.grib;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ArchiveChunkingTest {
+
+	@Test
+	public void testParseTimeseriesPreset() {
+		int[] shape = ArchiveChunking.parseChunkShape("timeseries");
+		assertArrayEquals(new int[] {0, 16, 16}, shape);
+	}
+
+	@Test
+	public void testParseExplicitShape() {
+		int[] shape = ArchiveChunking.parseChunkShape(" 744, 32,32 ");
+		assertArrayEquals(new int[] {744, 32, 32}, shape);
+	}
+
+	@Test
+	public void testParseEmpty() {
+		assertNull(ArchiveChunking.parseChunkShape(null));
+		assertNull(ArchiveChunking.parseChunkShape(""));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeLength() {
+		ArchiveChunking.parseChunkShape("24,-1,16");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testDeflateRange() {
+		new ArchiveChunking(null, 10);
+	}
+
+}
@@ -0,0 +1,152 @@
+package gov.usgs.cida.data.grib;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import ucar.nc2.dt.GridDatatype;
+import ucar.nc2.dt.grid.GridDataset;
+import ucar.nc2.ft.FeatureDataset;
+import ucar.unidata.geoloc.ProjectionImpl;
+
+public class GribUtilsTest {
+
+	private static String testGribFile = GribUtilsTest.class.getClassLoader().getResource(
+			"gov/usgs/cida/data/grib/QPE.20100319.009.160").getFile();
+	
+	private GridDataset gridDs;
+	private GridDatatype gdt;
+	private double[] xCoords;
+	private double[] yCoords;
+	
+	@Before
+	public void setUp() throws IOException {
+		FeatureDataset fd = GribUtils.getFeatureDatasetFromFile(new File(testGribFile));
+		gridDs = GribUtils.getGridDatasetFromFeatureDataset(fd);
+		gdt = GribUtils.getDatatypeFromDataset(gridDs);
+		xCoords = GribUtils.getXCoords(gridDs);
+		yCoords = GribUtils.getYCoords(gridDs);
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		gridDs.close();
+	}
+
+	@Test
+	public void testTiledMatchesSingleThreaded() {
+		double[][] expected = GribUtils.transformToLatLonNetCDFStyle(xCoords, yCoords, gdt);
+		double[][] actual = GribUtils.transformToLatLonTiled(xCoords, yCoords, gdt);
+		assertArrayEquals(expected[0], actual[0], 0.0);
+		assertArrayEquals(expected[1], actual[1], 0.0);
+	}
+
+	@Test
+	public void testTiledIntoCallerBuffers() {
+		int size = xCoords.length * yCoords.length;
+		double[] lats = new double[size];
+		double[] lons = new double[size];
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			GribUtils.transformToLatLonTiled(xCoords, yCoords, gdt.getCoordinateSystem().getProjection(), lats, lons, pool);
+		} finally {
+			pool.shutdown();
+		}
+		double[][] expected = GribUtils.transformToLatLonNetCDFStyle(xCoords, yCoords, gdt);
+		assertArrayEquals(expected[0], lats, 0.0);
+		assertArrayEquals(expected[1], lons, 0.0);
+	}
+
+	/**
+	 * Point by point on a grid of one block, and on one just large enough to
+	 * be split into uneven blocks of rows.
+	 */
+	@Test
+	public void testTiledMatchesOnSmallGrids() {
+		assertTiledMatches(Arrays.copyOfRange(xCoords, 10, 15), Arrays.copyOfRange(yCoords, 20, 23));
+		int columns = 240;
+		int rows = GribUtils.ProjectRows.TILE_POINTS / columns + 3;
+		assertTiledMatches(Arrays.copyOfRange(xCoords, 0, columns), Arrays.copyOfRange(yCoords, 0, rows));
+	}
+	
+	private void assertTiledMatches(double[] x, double[] y) {
+		double[][] expected = GribUtils.transformToLatLonNetCDFStyle(x, y, gdt);
+		double[][] actual = GribUtils.transformToLatLonTiled(x, y, gdt);
+		assertEquals("lats", x.length * y.length, actual[0].length);
+		for (int i=0; i<expected[0].length; i++) {
+			assertEquals("lat of point " + i, expected[0][i], actual[0][i], 0.0);
+			assertEquals("lon of point " + i, expected[1][i], actual[1][i], 0.0);
+		}
+	}
+
+	@Test
+	public void testIndexKeyFollowsDataFile() throws IOException {
+		File data = File.createTempFile("QPE.", ".160");
+		try {
+			String key = GribIndexCache.keyFor(data.getPath() + ".gbx9");
+			assertTrue("index suffix kept", key.endsWith(".gbx9"));
+			assertTrue("named for data file", key.startsWith(data.getName()));
+			assertEquals("stable for unchanged file", key, GribIndexCache.keyFor(data.getPath() + ".gbx9"));
+			
+			FileUtils.writeStringToFile(data, "changed");
+			assertFalse("new key when data changes", key.equals(GribIndexCache.keyFor(data.getPath() + ".gbx9")));
+		} finally {
+			data.delete();
+		}
+	}
+
+	/**
+	 * Times both projections on a grid of 16 copies of the test grid, about
+	 * the size of the larger RFCs.  Reports only; the speedup depends on the
+	 * number of processors, so it is not run with the unit tests.
+	 */
+	@Ignore("benchmark, run by hand")
+	@Test
+	public void benchmarkTiledProjection() {
+		double[] bigX = widen(xCoords, 4);
+		double[] bigY = widen(yCoords, 4);
+		ProjectionImpl projection = gdt.getCoordinateSystem().getProjection();
+		int size = bigX.length * bigY.length;
+		double[] lats = new double[size];
+		double[] lons = new double[size];
+		ForkJoinPool pool = GribUtils.getProjectionPool();
+		
+		int rounds = 5;
+		// warm up both paths
+		GribUtils.transformToLatLonNetCDFStyle(bigX, bigY, gdt);
+		GribUtils.transformToLatLonTiled(bigX, bigY, projection, lats, lons, pool);
+		
+		long start = System.nanoTime();
+		for (int r=0; r<rounds; r++) {
+			GribUtils.transformToLatLonNetCDFStyle(bigX, bigY, gdt);
+		}
+		long singleNanos = (System.nanoTime() - start) / rounds;
+		
+		start = System.nanoTime();
+		for (int r=0; r<rounds; r++) {
+			GribUtils.transformToLatLonTiled(bigX, bigY, projection, lats, lons, pool);
+		}
+		long tiledNanos = (System.nanoTime() - start) / rounds;
+		
+		System.out.printf("project %d points: single %d ms, tiled %d ms on %d threads\n",
+				size, singleNanos / 1000000, tiledNanos / 1000000, pool.getParallelism());
+	}
+	
+	private static double[] widen(double[] coords, int factor) {
+		double step = (coords[coords.length - 1] - coords[0]) / (coords.length - 1) / factor;
+		double[] wide = new double[coords.length * factor];
+		for (int i=0; i<wide.length; i++) {
+			wide[i] = coords[0] + i * step;
+		}
+		return wide;
+	}
+}
@@ -6,6 +6,7 @@ import java.util.Map;
 import java.util.Properties;
 
 import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.EtlHistory;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -69,6 +70,13 @@ public class JpaUpdateTest {
 		 }
 	}
 	
+	private static void history(EntityManager em, ArchiveConfig arc, String outcome) {
+		EtlHistory h = new EtlHistory();
+		h.setOutcome(outcome);
+		h.setArchiveConfig(arc);
+		em.persist(h);
+	}
+	
 	@Test
 	public void updateConnected() throws Exception {
 		EntityManagerFactory emf = context.getBean("emf", EntityManagerFactory.class);
@@ -82,7 +90,7 @@ public class JpaUpdateTest {
 		ArchiveConfig arc = q.getSingleResult();
 		assertTrue("active", arc.getActive());
 		
-		arc.addHistory("steam heat");
+		history(em, arc, "steam heat");
 		
 		t.commit();
 	}
@@ -108,7 +116,7 @@ public class JpaUpdateTest {
 		
 		t.begin();
 		arc = em.merge(arc);
-		arc.addHistory("detached heat");
+		history(em, arc, "detached heat");
 		t.commit();
 	}
 
@@ -0,0 +1,97 @@
+package gov.usgs.cida.data.grib;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ucar.nc2.dt.GridDatatype;
+import ucar.nc2.dt.grid.GridDataset;
+import ucar.nc2.ft.FeatureDataset;
+
+public class LatLonCacheTest {
+
+	private static String testGribFile = LatLonCacheTest.class.getClassLoader().getResource(
+			"gov/usgs/cida/data/grib/QPE.20100319.009.160").getFile();
+	
+	private File cacheDir;
+	private GridDataset gridDs;
+	
+	@Before
+	public void setUp() throws IOException {
+		cacheDir = new File(System.getProperty("java.io.tmpdir"), "latlon-" + System.nanoTime());
+		FeatureDataset fd = GribUtils.getFeatureDatasetFromFile(new File(testGribFile));
+		gridDs = GribUtils.getGridDatasetFromFeatureDataset(fd);
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		gridDs.close();
+		FileUtils.deleteQuietly(cacheDir);
+	}
+
+	@Test
+	public void testCachedMatchesProjected() {
+		GridDatatype gdt = GribUtils.getDatatypeFromDataset(gridDs);
+		double[] xCoords = GribUtils.getXCoords(gridDs);
+		double[] yCoords = GribUtils.getYCoords(gridDs);
+		double[][] expected = GribUtils.transformToLatLonNetCDFStyle(xCoords, yCoords, gdt);
+		
+		DoubleBuffer[] first = new LatLonCache(cacheDir).getLatLons(xCoords, yCoords, gdt);
+		assertEquals("one cache entry on disk", 1, cacheDir.listFiles().length);
+		
+		// a fresh cache has nothing in memory, so this comes from the mapped file
+		DoubleBuffer[] second = new LatLonCache(cacheDir).getLatLons(xCoords, yCoords, gdt);
+		assertTrue("mapped, not copied", second[0].isDirect());
+		
+		assertArrayEquals(expected[0], values(first[0]), 0.0);
+		assertArrayEquals(expected[1], values(first[1]), 0.0);
+		assertArrayEquals(expected[0], values(second[0]), 0.0);
+		assertArrayEquals(expected[1], values(second[1]), 0.0);
+	}
+
+	@Test
+	public void testWithoutDirectory() {
+		GridDatatype gdt = GribUtils.getDatatypeFromDataset(gridDs);
+		double[] xCoords = GribUtils.getXCoords(gridDs);
+		double[] yCoords = GribUtils.getYCoords(gridDs);
+		double[][] expected = GribUtils.transformToLatLonNetCDFStyle(xCoords, yCoords, gdt);
+		
+		LatLonCache cache = new LatLonCache(null);
+		DoubleBuffer[] first = cache.getLatLons(xCoords, yCoords, gdt);
+		assertArrayEquals(expected[0], values(first[0]), 0.0);
+		assertArrayEquals(expected[1], values(first[1]), 0.0);
+		assertTrue("read only", first[0].isReadOnly());
+		
+		// reading the first views does not move the next caller's
+		DoubleBuffer[] second = cache.getLatLons(xCoords, yCoords, gdt);
+		assertArrayEquals(expected[0], values(second[0]), 0.0);
+		assertFalse("nothing written", cacheDir.exists());
+	}
+
+	private static double[] values(DoubleBuffer buffer) {
+		double[] values = new double[buffer.remaining()];
+		buffer.get(values);
+		return values;
+	}
+
+	@Test
+	public void testKeyDependsOnAxes() {
+		GridDatatype gdt = GribUtils.getDatatypeFromDataset(gridDs);
+		double[] xCoords = GribUtils.getXCoords(gridDs);
+		double[] yCoords = GribUtils.getYCoords(gridDs);
+		String key = LatLonCache.keyFor(xCoords, yCoords, gdt.getCoordinateSystem().getProjection());
+		
+		double[] shifted = xCoords.clone();
+		shifted[0] += 1.0;
+		String other = LatLonCache.keyFor(shifted, yCoords, gdt.getCoordinateSystem().getProjection());
+		
+		assertFalse("different grids have different keys", key.equals(other));
+	}
+}
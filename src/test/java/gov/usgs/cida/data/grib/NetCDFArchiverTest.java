@@ -3,25 +3,45 @@ package gov.usgs.cida.data.grib;
 import static org.junit.Assert.*;
 
 import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
 import gov.usgs.cida.ncetl.jpa.RenameMapping;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
-import org.hamcrest.Matcher;
 import org.hamcrest.core.IsInstanceOf;
 import org.junit.After;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.IndexIterator;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.time.CalendarDate;
 
 public class NetCDFArchiverTest {
 
@@ -93,7 +113,7 @@ public class NetCDFArchiverTest {
 		input.add(new File(testGribFile));
 		
 		String outputName = tmpNc.getName();
-		Object result = victim.processFiles(input, outputName, cfg);
+		Object result = victim.processFiles(input, outputName, cfg, null, null);
 		assertThat(result, IsInstanceOf.instanceOf(File.class));
 		
 		File output = (File)result;
@@ -105,4 +125,391 @@ public class NetCDFArchiverTest {
 		assertTrue("output has content", 0 < output.length());
 	}
 
+	@Test
+	public void testProcessFilesParallelDecode() throws Exception {
+		
+		ArchiveConfig cfg = mockConfig();
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		input.add(new File(testGribFile));
+		input.add(new File(testGribFile));
+		
+		victim.setDecodeThreads(2);
+		victim.setMaxFilesInFlight(2);
+		try {
+			String outputName = tmpNc.getName();
+			Object result = victim.processFiles(input, outputName, cfg, null, null);
+			assertThat(result, IsInstanceOf.instanceOf(File.class));
+			
+			NetcdfFile nc = NetcdfFile.open(((File)result).getAbsolutePath());
+			try {
+				Array time = nc.findVariable("time").read();
+				assertTrue("three files appended", time.getSize() > 0 && time.getSize() % 3 == 0);
+			} finally {
+				nc.close();
+			}
+		} finally {
+			victim.shutdown();
+		}
+	}
+
+	@Test
+	public void testProcessFilesStaged() throws Exception {
+		
+		ArchiveConfig cfg = mockConfig();
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		
+		File scratch = new File(System.getProperty("java.io.tmpdir"), "scratch-" + System.nanoTime());
+		victim.setScratchDir(scratch.getAbsolutePath());
+		try {
+			String outputName = tmpNc.getName();
+			Object result = victim.processFiles(input, outputName, cfg, null, null);
+			assertThat(result, IsInstanceOf.instanceOf(File.class));
+			
+			File output = (File)result;
+			assertEquals("published to output dir", new File(cfg.getOutputDir(), outputName), output);
+			assertTrue("output has content", 0 < output.length());
+			assertFalse("staged file removed", new File(scratch, outputName).exists());
+			assertFalse("no partial file left", new File(cfg.getOutputDir(), "." + outputName + ".part").exists());
+		} finally {
+			FileUtils.deleteQuietly(scratch);
+		}
+	}
+
+	@Test
+	public void testProcessFilesSchemaCache() throws Exception {
+		
+		ArchiveConfig cfg = mockConfig();
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		
+		File cacheDir = new File(System.getProperty("java.io.tmpdir"), "schema-" + System.nanoTime());
+		SchemaCache cache = new SchemaCache(cacheDir);
+		victim.setSchemaCache(cache);
+		try {
+			String outputName = tmpNc.getName();
+			Object result = victim.processFiles(input, outputName, cfg, null, null);
+			assertThat(result, IsInstanceOf.instanceOf(File.class));
+			long fromGrib = timeSize((File)result);
+			
+			ArchiveSchema schema = cache.get(cfg.getRfcCode());
+			assertNotNull("schema cached", schema);
+			long latLonBytes = 2L * 8 * schema.getXCoords().length * schema.getYCoords().length;
+			assertTrue("lat/lon not in the cached schema", FileUtils.sizeOf(cacheDir) < latLonBytes);
+			
+			result = victim.processFiles(input, outputName, cfg, null, null);
+			assertThat(result, IsInstanceOf.instanceOf(File.class));
+			assertEquals("same hours from cached schema", fromGrib, timeSize((File)result));
+			
+			NetcdfFile nc = NetcdfFile.open(((File)result).getAbsolutePath());
+			try {
+				assertNotNull("lat written", nc.findVariable("lat"));
+				assertEquals("lats from schema", schema.getXCoords().length * schema.getYCoords().length, nc.findVariable("lat").getSize());
+			} finally {
+				nc.close();
+			}
+		} finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+
+	@Test
+	public void testProcessFilesResume() throws Exception {
+		
+		ArchiveConfig cfg = mockConfig();
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		
+		String outputName = tmpNc.getName();
+		Object result = victim.processFiles(input, outputName, cfg, null, null);
+		assertThat(result, IsInstanceOf.instanceOf(File.class));
+		long firstSize = timeSize((File)result);
+		assertTrue("first run wrote hours", firstSize > 0);
+		
+		victim.setResume(true);
+		result = victim.processFiles(input, outputName, cfg, null, null);
+		assertThat(result, IsInstanceOf.instanceOf(File.class));
+		
+		long resumedSize = timeSize((File)result);
+		System.out.printf("resumed %d hours, now %d\n", firstSize, resumedSize);
+		assertEquals("hours already present are not appended again", firstSize, resumedSize);
+	}
+	
+	@Test
+	public void testProcessFilesResumeOtherGrid() throws Exception {
+		
+		ArchiveConfig cfg = mockConfig();
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		
+		String outputName = tmpNc.getName();
+		Object result = victim.processFiles(input, outputName, cfg, null, null);
+		assertThat(result, IsInstanceOf.instanceOf(File.class));
+		long firstSize = timeSize((File)result);
+		String signature = gridSignature((File)result);
+		assertNotNull("grid signature recorded", signature);
+		
+		// as if the archive had been written for another grid
+		NetcdfFileWriter writer = NetcdfFileWriter.openExisting(((File)result).getAbsolutePath());
+		try {
+			writer.setRedefineMode(true);
+			writer.addGroupAttribute(null, new Attribute(RollingNetCDFArchive.GRID_SIGNATURE, "other grid"));
+			writer.setRedefineMode(false);
+		} finally {
+			writer.close();
+		}
+		
+		victim.setResume(true);
+		result = victim.processFiles(input, outputName, cfg, null, null);
+		assertThat(result, IsInstanceOf.instanceOf(File.class));
+		assertEquals("rebuilt rather than resumed", signature, gridSignature((File)result));
+		assertEquals("hours of the input", firstSize, timeSize((File)result));
+	}
+	
+	@Test
+	public void testHoursOfInputFile() {
+		Matcher daily = Pattern.compile("QPE\\.(\\d{4})(\\d{2})(\\d{2})\\.009\\.160").matcher("QPE.20100319.009.160");
+		assertTrue(daily.matches());
+		assertEquals("whole day", CalendarDate.of(null, 2010, 3, 19, 0, 0, 0), NetCDFArchiver.firstHourOf(daily));
+		assertEquals("whole day", 24, NetCDFArchiver.hoursOf(daily));
+		
+		Matcher hourly = Pattern.compile("QPE\\.(\\d{4})(\\d{2})(\\d{2})\\.(\\d{2})\\.160").matcher("QPE.20100319.07.160");
+		assertTrue(hourly.matches());
+		assertEquals("its hour", CalendarDate.of(null, 2010, 3, 19, 7, 0, 0), NetCDFArchiver.firstHourOf(hourly));
+		assertEquals("one hour", 1, NetCDFArchiver.hoursOf(hourly));
+	}
+	
+	private static String gridSignature(File output) throws IOException {
+		NetcdfFile nc = NetcdfFile.open(output.getAbsolutePath());
+		try {
+			Attribute signature = nc.findGlobalAttribute(RollingNetCDFArchive.GRID_SIGNATURE);
+			return (signature == null) ? null : signature.getStringValue();
+		} finally {
+			nc.close();
+		}
+	}
+	
+	private static long timeSize(File output) throws IOException {
+		NetcdfFile nc = NetcdfFile.open(output.getAbsolutePath());
+		try {
+			return nc.findVariable("time").getSize();
+		} finally {
+			nc.close();
+		}
+	}
+
+	@Test
+	public void testProcessFilesFixedTime() throws Exception {
+		
+		ArchiveConfig cfg = mockConfig();
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		
+		victim.setFixedTimeDimension(true);
+		
+		String outputName = tmpNc.getName();
+		Object result = victim.processFiles(input, outputName, cfg, 2010, 3);
+		assertThat(result, IsInstanceOf.instanceOf(File.class));
+		
+		File output = (File)result;
+		NetcdfFile nc = NetcdfFile.open(output.getAbsolutePath());
+		try {
+			Dimension time = nc.findDimension("time");
+			assertNotNull("time dimension", time);
+			assertFalse("time is not a record dimension", time.isUnlimited());
+			assertEquals("hours in March", 31 * 24, time.getLength());
+		} finally {
+			nc.close();
+		}
+	}
+
+	@Test
+	public void testProcessFilesSameOutputSerialized() throws Exception {
+		
+		final AtomicInteger writing = new AtomicInteger();
+		final AtomicInteger mostWriting = new AtomicInteger();
+		victim = new NetCDFArchiver() {
+			@Override
+			protected RollingNetCDFArchive createArchive(File output, ArchiveConfigI cfg) throws IOException {
+				int now = writing.incrementAndGet();
+				mostWriting.set(Math.max(mostWriting.get(), now));
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					writing.decrementAndGet();
+				}
+				return super.createArchive(output, cfg);
+			}
+		};
+		victim.setMaxConcurrentWrites(4);
+		
+		final ArchiveConfig cfg = mockConfig();
+		final List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		final String outputName = tmpNc.getName();
+		
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int i = 0; i < 2; i++) {
+				results.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						return victim.processBatch(input, outputName, cfg, null, null, null, null);
+					}
+				}));
+			}
+			for (Future<Object> result : results) {
+				assertThat(result.get(), IsInstanceOf.instanceOf(File.class));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals("writers of one output at once", 1, mostWriting.get());
+		assertEquals("consumed input", 1, victim.takeConsumed(new File(cfg.getOutputDir(), outputName)).size());
+		assertEquals("guard dropped", 0, victim.guardCount());
+	}
+
+	@Test
+	public void testNothingKeptAfterLastBatch() throws Exception {
+		ArchiveConfig cfg = mockConfig();
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		String outputName = tmpNc.getName();
+		File output = new File(cfg.getOutputDir(), outputName);
+		
+		victim.processBatch(input, outputName, cfg, null, null, 0, false);
+		assertEquals("guard held between sub-batches", 1, victim.guardCount());
+		victim.processBatch(input, outputName, cfg, null, null, 1, true);
+		assertEquals("guard dropped after the last", 0, victim.guardCount());
+		assertFalse("consumed kept for InputMover", victim.takeConsumed(output).isEmpty());
+		
+		// backfill and watch mode do not take consumed inputs, so none are kept for them
+		assertThat(victim.processFiles(input, outputName, cfg, null, null), IsInstanceOf.instanceOf(File.class));
+		assertThat(victim.rebuild(input, outputName, cfg, null, null), IsInstanceOf.instanceOf(File.class));
+		assertTrue("nothing kept", victim.takeConsumed(output).isEmpty());
+		assertEquals("no guards", 0, victim.guardCount());
+	}
+
+	@Test(timeout=120000)
+	public void testProcessBatchAfterRestart() throws Exception {
+		ArchiveConfig cfg = mockConfig();
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		String outputName = tmpNc.getName();
+		
+		// a new archiver, as after a restart, sees its first sub-batch numbered on from the stored ones
+		Object result = victim.processBatch(input, outputName, cfg, null, null, 3, false);
+		assertThat(result, IsInstanceOf.instanceOf(File.class));
+		result = victim.processBatch(input, outputName, cfg, null, null, 4, true);
+		assertThat(result, IsInstanceOf.instanceOf(File.class));
+	}
+
+	@Test(timeout=120000)
+	public void testProcessBatchGivesUpWaiting() throws Exception {
+		ArchiveConfig cfg = mockConfig();
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		String outputName = tmpNc.getName();
+		
+		victim.setBatchWaitMillis(100);
+		assertThat(victim.processBatch(input, outputName, cfg, null, null, 1, false), IsInstanceOf.instanceOf(File.class));
+		// sub-batch 2 never comes
+		Object result = victim.processBatch(input, outputName, cfg, null, null, 3, false);
+		assertThat(result, IsInstanceOf.instanceOf(ArchiveException.class));
+		// and the one after the failed one is not held up
+		result = victim.processBatch(input, outputName, cfg, null, null, 4, true);
+		assertThat(result, IsInstanceOf.instanceOf(File.class));
+	}
+
+	@Test
+	public void testProcessFilesNetcdf4() throws Exception {
+		Assume.assumeTrue(netcdf4Available());
+		
+		List<File> input = new ArrayList<File>();
+		input.add(new File(testGribFile));
+		String data = "1-hour_Quantitative_Precip_Estimate_surface_1_Hour_Accumulation";
+		
+		File plain = new File(System.getProperty("java.io.tmpdir"), "plain-" + tmpNc.getName());
+		File deflated = new File(System.getProperty("java.io.tmpdir"), "deflated-" + tmpNc.getName());
+		try {
+			File reference = (File) victim.processFiles(input, tmpNc.getName(), mockConfig(), null, null);
+			assertEquals("plain netcdf4", plain, victim.processFiles(input, plain.getName(), netcdf4Config(0), null, null));
+			assertEquals("deflated netcdf4", deflated, victim.processFiles(input, deflated.getName(), netcdf4Config(5), null, null));
+			
+			assertTrue("HDF5 file", isHdf5(deflated));
+			assertTrue("deflate shrinks the file", deflated.length() < plain.length());
+			
+			NetcdfFile expected = NetcdfFile.open(reference.getAbsolutePath());
+			NetcdfFile actual = NetcdfFile.open(deflated.getAbsolutePath());
+			try {
+				for (String name : new String[] {"time", "lat", "lon", data}) {
+					Variable v = actual.findVariable(name);
+					assertNotNull(name + " written", v);
+					assertSameValues(name, expected.findVariable(name).read(), v.read());
+				}
+			} finally {
+				actual.close();
+				expected.close();
+			}
+		} finally {
+			FileUtils.deleteQuietly(plain);
+			FileUtils.deleteQuietly(deflated);
+		}
+	}
+	
+	private ArchiveConfig netcdf4Config(int deflateLevel) {
+		ArchiveConfig cfg = mockConfig();
+		cfg.setNetcdfVersion(NetcdfFileWriter.Version.netcdf4.name());
+		cfg.setChunking("24,32,32");
+		cfg.setDeflateLevel(deflateLevel);
+		return cfg;
+	}
+	
+	/**
+	 * Whether NetCDF-4 files can be written here, which needs the netCDF-C library.
+	 */
+	private static boolean netcdf4Available() {
+		File probe = new File(System.getProperty("java.io.tmpdir"), "probe-" + System.nanoTime() + ".nc");
+		try {
+			NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf4, probe.getAbsolutePath());
+			writer.addDimension(null, "x", 1);
+			writer.addVariable(null, "x", DataType.INT, "x");
+			writer.create();
+			writer.close();
+			return true;
+		} catch (Exception e) {
+			System.out.printf("No NetCDF-4 output: %s\n", e);
+			return false;
+		} catch (LinkageError e) {
+			System.out.printf("No netCDF-C library: %s\n", e);
+			return false;
+		} finally {
+			FileUtils.deleteQuietly(probe);
+		}
+	}
+	
+	private static boolean isHdf5(File f) throws IOException {
+		byte[] magic = new byte[4];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			return in.read(magic) == magic.length
+					&& magic[0] == (byte) 0x89 && magic[1] == 'H' && magic[2] == 'D' && magic[3] == 'F';
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+	
+	private static void assertSameValues(String name, Array expected, Array actual) {
+		assertEquals(name + " size", expected.getSize(), actual.getSize());
+		IndexIterator e = expected.getIndexIterator();
+		IndexIterator a = actual.getIndexIterator();
+		while (e.hasNext()) {
+			assertEquals(name, e.getDoubleNext(), a.getDoubleNext(), 0.0);
+		}
+	}
+
 }
@@ -10,6 +10,8 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -19,10 +21,16 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Ignore;
 import org.junit.Test;
+import ucar.ma2.Array;
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.IndexIterator;
 import ucar.ma2.InvalidRangeException;
+import ucar.nc2.NetcdfFile;
 import ucar.nc2.dataset.CoordinateAxis1DTime;
 import ucar.nc2.dt.GridCoordSystem;
 import ucar.nc2.dt.GridDatatype;
@@ -98,7 +106,11 @@ public class RollingNetCDFArchiveTest {
 //    }
     
     private RollingNetCDFArchive define() throws Exception {
-        RollingNetCDFArchive roll = new RollingNetCDFArchive(tmpNc);
+        return define(tmpNc);
+    }
+    
+    private RollingNetCDFArchive define(File nc) throws Exception {
+        RollingNetCDFArchive roll = new RollingNetCDFArchive(nc);
         List<String> dimList = Lists.newLinkedList();
         dimList.add("time1");
         List<String> varList = Lists.newLinkedList();
@@ -163,6 +175,260 @@ public class RollingNetCDFArchiveTest {
         Closeables.closeQuietly(roll);
     }
     
+    @Test
+    public void testAddFileBatched() throws Exception {
+        File batchedNc = new File(tmpNc.getParentFile(), "batched-" + tmpNc.getName());
+        try {
+            RollingNetCDFArchive roll = define();
+            roll.addFile(new File(testGribFile));
+            roll.close();
+            
+            RollingNetCDFArchive batched = define(batchedNc);
+            batched.setWriteBatch(5, RollingNetCDFArchive.DEFAULT_BATCH_MEMORY_BUDGET);
+            batched.addFile(new File(testGribFile));
+            batched.close();
+            
+            NetcdfFile single = NetcdfFile.open(tmpNc.getAbsolutePath());
+            NetcdfFile multi = NetcdfFile.open(batchedNc.getAbsolutePath());
+            try {
+                String dataVar = "1-hour_Quantitative_Precip_Estimate_surface_1_Hour_Accumulation";
+                Array expectedTime = single.findVariable("time").read();
+                Array actualTime = multi.findVariable("time").read();
+                assertThat(actualTime.getSize(), is(equalTo(expectedTime.getSize())));
+                for (int i=0; i<expectedTime.getSize(); i++) {
+                    assertThat(actualTime.getInt(i), is(equalTo(expectedTime.getInt(i))));
+                }
+                Array expectedData = single.findVariable(dataVar).read();
+                Array actualData = multi.findVariable(dataVar).read();
+                assertThat(actualData.getSize(), is(equalTo(expectedData.getSize())));
+                for (int i=0; i<expectedData.getSize(); i++) {
+                    assertThat(actualData.getFloat(i), is(equalTo(expectedData.getFloat(i))));
+                }
+            }
+            finally {
+                single.close();
+                multi.close();
+            }
+        }
+        finally {
+            FileUtils.deleteQuietly(batchedNc);
+        }
+    }
+    
+    /**
+     * A resumed archive should take each hour once, and appending a file
+     * whose hours are all present is in order and writes nothing.
+     */
+    @Test
+    public void testResumeSkipsAppendedHours() throws Exception {
+        File onceNc = new File(tmpNc.getParentFile(), "once-" + tmpNc.getName());
+        try {
+            RollingNetCDFArchive once = define(onceNc);
+            once.addFile(new File(testGribFile));
+            once.close();
+            
+            RollingNetCDFArchive roll = define();
+            assertThat(roll.resume(), is(true));
+            for (int i=0; i<2; i++) {
+                DecodedFile decoded = roll.decode(new File(testGribFile));
+                assertThat(roll.isInOrder(decoded), is(true));
+                roll.append(decoded);
+            }
+            // hours already present still count as consumed
+            assertThat(roll.getConsumed().size(), is(equalTo(2)));
+            roll.close();
+            
+            NetcdfFile expected = NetcdfFile.open(onceNc.getAbsolutePath());
+            NetcdfFile actual = NetcdfFile.open(tmpNc.getAbsolutePath());
+            try {
+                assertThat(actual.findVariable("time").getSize(),
+                        is(equalTo(expected.findVariable("time").getSize())));
+            }
+            finally {
+                expected.close();
+                actual.close();
+            }
+        }
+        finally {
+            FileUtils.deleteQuietly(onceNc);
+        }
+    }
+    
+    @Test
+    public void testAsTimestepSharesStorage() {
+        ArrayFloat.D2 slice = new ArrayFloat.D2(260, 250);
+        slice.set(17, 42, 3.5f);
+        Array timestep = RollingNetCDFArchive.asTimestep(slice, new int[] {1, 260, 250});
+        assertThat(timestep.getRank(), is(equalTo(3)));
+        assertThat(timestep.getStorage() == slice.getStorage(), is(true));
+        assertThat(timestep.getFloat(timestep.getIndex().set(0, 17, 42)), is(equalTo(3.5f)));
+    }
+    
+    /**
+     * Appending decoded hours should not copy the grid for each hour; the
+     * bytes allocated per appended hour must stay well under one slice.
+     */
+    @Test
+    public void testAppendAllocationPerHour() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        
+        RollingNetCDFArchive roll = define();
+        try {
+            DecodedFile decoded = roll.decode(new File(testGribFile));
+            int hours = decoded.size();
+            assertThat(hours > 0, is(true));
+            long sliceBytes = 0;
+            for (DecodedFile.Grid grid : decoded.getGrids()) {
+                sliceBytes = Math.max(sliceBytes, 4L * grid.getYLength() * grid.getXLength());
+            }
+            // warm up
+            roll.append(decoded);
+            
+            int rounds = 10;
+            long threadId = Thread.currentThread().getId();
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            for (int r=0; r<rounds; r++) {
+                roll.append(decoded);
+            }
+            long perHour = (allocations.getThreadAllocatedBytes(threadId) - before) / (rounds * hours);
+            System.out.printf("append allocated %d bytes per hour, slice is %d bytes\n", perHour, sliceBytes);
+            assertThat(perHour < sliceBytes / 4, is(true));
+        }
+        finally {
+            Closeables.closeQuietly(roll);
+        }
+    }
+    
+    @Test
+    public void testAsTimestep() throws InvalidRangeException {
+        int ny = 3;
+        int nx = 4;
+        int[] shape = new int[] {1, ny, nx};
+        ArrayFloat.D2 slice = new ArrayFloat.D2(ny, nx);
+        for (int y=0; y<ny; y++) {
+            for (int x=0; x<nx; x++) {
+                slice.set(y, x, y * nx + x);
+            }
+        }
+        assertTimestep(slice, RollingNetCDFArchive.asTimestep(slice, shape));
+        
+        // every other column of a wider grid is not contiguous, so it is copied
+        ArrayFloat.D2 wide = new ArrayFloat.D2(ny, 2 * nx);
+        for (int y=0; y<ny; y++) {
+            for (int x=0; x<nx; x++) {
+                wide.set(y, 2 * x, y * nx + x);
+                wide.set(y, 2 * x + 1, -1);
+            }
+        }
+        Array strided = wide.section(new int[] {0, 0}, new int[] {ny, nx}, new int[] {1, 2});
+        assertTimestep(strided, RollingNetCDFArchive.asTimestep(strided, shape));
+    }
+    
+    /**
+     * Each hour appended is written as decoded, at the record of its time.
+     */
+    @Test
+    public void testAppendWritesSlices() throws Exception {
+        RollingNetCDFArchive roll = define();
+        DecodedFile decoded;
+        try {
+            decoded = roll.decode(new File(testGribFile));
+            roll.append(decoded);
+        }
+        finally {
+            roll.close();
+        }
+        
+        NetcdfFile nc = NetcdfFile.open(tmpNc.getAbsolutePath());
+        try {
+            DecodedFile.Grid grid = decoded.getGrids().get(0);
+            assertThat(grid.size() > 0, is(true));
+            Array time = nc.findVariable("time").read();
+            ucar.nc2.Variable data = nc.findVariable(grid.getTarget());
+            for (int i=0; i<grid.size(); i++) {
+                int record = -1;
+                for (int r=0; r<time.getSize(); r++) {
+                    if (time.getInt(r) == grid.getTimeValue(i)) {
+                        record = r;
+                    }
+                }
+                assertThat(record >= 0, is(true));
+                Array written = data.read(new int[] {record, 0, 0}, new int[] {1, grid.getYLength(), grid.getXLength()});
+                Array slice = grid.getSlice(i);
+                assertThat(written.getSize(), is(equalTo(slice.getSize())));
+                IndexIterator expected = slice.getIndexIterator();
+                IndexIterator actual = written.getIndexIterator();
+                while (expected.hasNext()) {
+                    assertThat(actual.getFloatNext(), is(equalTo(expected.getFloatNext())));
+                }
+            }
+        }
+        finally {
+            nc.close();
+        }
+    }
+    
+    /**
+     * Compares the element-wise copy that addFile used to do for each
+     * timestep against the reshaped view, for one month of hours on a
+     * 260 x 250 grid.  Timings depend on the machine, so it only prints
+     * them and is not run with the unit tests.
+     */
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmarkAppendSlice() {
+        int hours = 31 * 24;
+        int ny = 260;
+        int nx = 250;
+        int[] shape = new int[] {1, ny, nx};
+        ArrayFloat.D2 slice = new ArrayFloat.D2(ny, nx);
+        
+        // warm up both paths
+        copySlice(slice, ny, nx);
+        RollingNetCDFArchive.asTimestep(slice, shape);
+        
+        long start = System.nanoTime();
+        for (int t=0; t<hours; t++) {
+            copySlice(slice, ny, nx);
+        }
+        long copyNanos = System.nanoTime() - start;
+        
+        start = System.nanoTime();
+        for (int t=0; t<hours; t++) {
+            RollingNetCDFArchive.asTimestep(slice, shape);
+        }
+        long viewNanos = System.nanoTime() - start;
+        
+        System.out.printf("append %d slices: copy %d ms, view %d ms\n", hours, copyNanos / 1000000, viewNanos / 1000000);
+    }
+    
+    private static ArrayFloat.D3 copySlice(ArrayFloat.D2 slice, int ny, int nx) {
+        ArrayFloat.D3 dataArray = new ArrayFloat.D3(1, ny, nx);
+        for (int y=0; y<ny; y++) {
+            for (int x=0; x<nx; x++) {
+                dataArray.set(0, y, x, slice.get(y, x));
+            }
+        }
+        return dataArray;
+    }
+    
+    private static void assertTimestep(Array slice, Array timestep) {
+        int ny = slice.getShape()[0];
+        int nx = slice.getShape()[1];
+        assertThat(timestep.getShape(), is(equalTo(new int[] {1, ny, nx})));
+        for (int y=0; y<ny; y++) {
+            for (int x=0; x<nx; x++) {
+                float expected = slice.getFloat(slice.getIndex().set(y, x));
+                assertThat(timestep.getFloat(timestep.getIndex().set(0, y, x)), is(equalTo(expected)));
+                assertThat(expected, is(equalTo((float) (y * nx + x))));
+            }
+        }
+    }
+    
     @Test
     public void testBounds() throws IOException {
         FeatureDataset fd = GribUtils.getFeatureDatasetFromFile(new File(testGribFile));
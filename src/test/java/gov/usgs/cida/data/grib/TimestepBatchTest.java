@@ -0,0 +1,77 @@
+package gov.usgs.cida.data.grib;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+
+public class TimestepBatchTest {
+
+	private File nc;
+	private NetcdfFileWriter writer;
+	private Variable dataVar;
+	private Variable timeVar;
+
+	@Before
+	public void setUp() throws IOException {
+		nc = new File(System.getProperty("java.io.tmpdir"), "batch-" + System.nanoTime() + ".nc");
+		writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, nc.getAbsolutePath());
+		writer.addUnlimitedDimension("time");
+		writer.addDimension(null, "y", 2);
+		writer.addDimension(null, "x", 3);
+		timeVar = writer.addVariable(null, "time", DataType.INT, "time");
+		dataVar = writer.addVariable(null, "data", DataType.FLOAT, "time y x");
+		writer.create();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		writer.close();
+		FileUtils.deleteQuietly(nc);
+	}
+
+	private static Array slice(float value) {
+		Array slice = Array.factory(DataType.FLOAT, new int[] {2, 3});
+		for (int i = 0; i < slice.getSize(); i++) {
+			slice.setFloat(i, value);
+		}
+		return slice;
+	}
+
+	@Test
+	public void testFlushWrites() throws IOException {
+		TimestepBatch batch = new TimestepBatch(dataVar, timeVar, 4, 2, 3);
+		batch.add(0, 100, slice(1));
+		batch.add(1, 101, slice(2));
+		batch.flush(writer);
+
+		assertTrue("emptied", batch.isEmpty());
+		assertEquals("records", 2, writer.findVariable("time").getShape(0));
+	}
+
+	@Test
+	public void testFailedFlushKeepsTimesteps() {
+		TimestepBatch batch = new TimestepBatch(dataVar, timeVar, 4, 2, 3);
+		// no record at a negative index, so the write fails
+		batch.add(-1, 100, slice(1));
+		try {
+			batch.flush(writer);
+			fail("wrote at a negative index");
+		} catch (IOException e) {
+			System.out.printf("flush failed: %s\n", e.getMessage());
+		}
+		assertFalse("timesteps still held", batch.isEmpty());
+		assertEquals("end", 0, batch.end());
+	}
+
+}
@@ -0,0 +1,87 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveConfigManagerTest {
+
+	private ArchiveConfigManager victim;
+	private int fetches;
+	private String name;
+
+	@Before
+	public void setUp() throws Exception {
+		fetches = 0;
+		name = "first";
+		// the database, as far as the cache can tell
+		victim = new ArchiveConfigManager() {
+			@Override
+			public ArchiveConfig fetch(int rfc) {
+				fetches++;
+				return config(rfc, name);
+			}
+
+			@Override
+			public List<ArchiveConfig> all() {
+				fetches++;
+				return Collections.singletonList(config(999, name));
+			}
+		};
+	}
+
+	private static ArchiveConfig config(int rfc, String name) {
+		ArchiveConfig cfg = new ArchiveConfig();
+		cfg.setRfcCode(rfc);
+		cfg.setName(name);
+		return cfg;
+	}
+
+	@Test
+	public void testCachedUntilInvalidated() {
+		ArchiveSettings s = victim.settings(999);
+		assertEquals("name", "first", s.getName());
+		assertSame("cached", s, victim.settings(999));
+		assertEquals("fetches", 1, fetches);
+
+		name = "second";
+		assertEquals("still cached", "first", victim.settings(999).getName());
+		victim.invalidate(999);
+		assertEquals("reloaded", "second", victim.settings(999).getName());
+		assertEquals("fetches", 2, fetches);
+	}
+
+	@Test
+	public void testRefresh() {
+		victim.settings(999);
+		victim.refresh(Collections.singletonList(config(999, "polled")));
+		assertEquals("replaced", "polled", victim.settings(999).getName());
+		assertEquals("fetches", 1, fetches);
+	}
+
+	@Test
+	public void testAllSettings() {
+		victim.settings(999);
+		name = "second";
+		List<ArchiveSettings> all = victim.allSettings();
+		assertEquals("configs", 1, all.size());
+		assertEquals("loaded", "second", all.get(0).getName());
+		assertSame("cached", all.get(0), victim.settings(999));
+		assertEquals("fetches", 2, fetches);
+	}
+
+	@Test
+	public void testSnapshotIsImmutable() {
+		ArchiveSettings s = victim.settings(999);
+		try {
+			s.getRenames().put("a", "b");
+			fail("renames changed");
+		} catch (UnsupportedOperationException expected) {
+		}
+	}
+
+}
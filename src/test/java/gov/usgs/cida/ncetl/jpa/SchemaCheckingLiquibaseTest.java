@@ -0,0 +1,37 @@
+package gov.usgs.cida.ncetl.jpa;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+public class SchemaCheckingLiquibaseTest {
+
+	@Test
+	public void testLastChangeSetSkipsOneDatabase() {
+		String changeLog = "<databaseChangeLog>\n"
+				+ "<changeSet id=\"first\" author=\"rhayes\">\n</changeSet>\n"
+				+ "<changeSet author=\"someone\" id=\"second\">\n</changeSet>\n"
+				+ "<changeSet id=\"third\" author=\"rhayes\" dbms=\"derby\">\n</changeSet>\n"
+				+ "</databaseChangeLog>";
+		String[] last = SchemaCheckingLiquibase.lastChangeSet(changeLog);
+		assertArrayEquals(new String[] {"second", "someone"}, last);
+		
+		assertNull("none", SchemaCheckingLiquibase.lastChangeSet("<databaseChangeLog/>"));
+	}
+
+	@Test
+	public void testChangeLog() throws Exception {
+		InputStream in = getClass().getClassLoader().getResourceAsStream("liquibase/changelog.xml");
+		String changeLog = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+		in.close();
+		String[] last = SchemaCheckingLiquibase.lastChangeSet(changeLog);
+		assertNotNull("found", last);
+		System.out.printf("Last changeset %s by %s\n", last[0], last[1]);
+	}
+
+}
@@ -0,0 +1,80 @@
+package gov.usgs.cida.ncetl.mocks;
+
+import gov.usgs.cida.ncetl.jpa.InputDirScan;
+import gov.usgs.cida.ncetl.jpa.InputFile;
+import gov.usgs.cida.ncetl.jpa.InputFileIndexI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class MockInputFileIndex implements InputFileIndexI {
+
+	private final Map<String, InputDirScan> scans = new HashMap<String, InputDirScan>();
+	private final List<InputFile> files = new ArrayList<InputFile>();
+	private int refreshCount = 0;
+
+	@Override
+	public InputDirScan getScan(String inputDir) {
+		return scans.get(inputDir);
+	}
+
+	@Override
+	public Set<String> getNames(String inputDir, int rfc) {
+		Set<String> value = new HashSet<String>();
+		for (InputFile f : files) {
+			if (f.getInputDir().equals(inputDir) && f.getRfcCode() == rfc) {
+				value.add(f.getName());
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public void refresh(String inputDir, long dirModified, String configs,
+			Collection<Integer> reindexed, List<InputFile> added, Collection<String> removed) {
+		refreshCount++;
+		for (Iterator<InputFile> it = files.iterator(); it.hasNext(); ) {
+			InputFile f = it.next();
+			if (f.getInputDir().equals(inputDir)
+					&& (removed.contains(f.getName()) || reindexed.contains(f.getRfcCode()))) {
+				it.remove();
+			}
+		}
+		files.addAll(added);
+		scans.put(inputDir, new InputDirScan(inputDir, dirModified, configs));
+	}
+
+	@Override
+	public List<InputFile> filesIn(String inputDir, int rfc, int firstMonth, int lastMonth) {
+		List<InputFile> value = new ArrayList<InputFile>();
+		for (InputFile f : files) {
+			int month = f.getYear() * 12 + f.getMonth() - 1;
+			if (f.getInputDir().equals(inputDir) && f.getRfcCode() == rfc && month >= firstMonth && month <= lastMonth) {
+				value.add(f);
+			}
+		}
+		Collections.sort(value, new Comparator<InputFile>() {
+			@Override
+			public int compare(InputFile a, InputFile b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return value;
+	}
+
+	public int getRefreshCount() {
+		return refreshCount;
+	}
+
+	public int size() {
+		return files.size();
+	}
+}
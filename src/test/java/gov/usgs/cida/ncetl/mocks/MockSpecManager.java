@@ -1,6 +1,7 @@
 package gov.usgs.cida.ncetl.mocks;
 
 import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveSettings;
 import gov.usgs.cida.ncetl.jpa.ConfigFetcherI;
 
 import org.slf4j.Logger;
@@ -18,4 +19,9 @@ public class MockSpecManager implements ConfigFetcherI {
 		logger.info("spec for {}", rfc);
 		return new ArchiveConfig();
 	}
+
+	@Override
+	public ArchiveSettings settings(int rfc) {
+		return new ArchiveSettings(fetch(rfc));
+	}
 }
@@ -0,0 +1,97 @@
+package gov.usgs.cida.ncetl.sis;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import gov.usgs.cida.data.grib.NetCDFArchiver;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.ArchiveConfigI;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateMidnight;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BackfillTest {
+
+	private Backfill victim;
+	private RecordingArchiver archiver;
+	private File progressDir;
+	private String fileRegex = "^sample_(\\d{4})-(\\d{2})-(\\d{2})\\.txt$";
+
+	private static class RecordingArchiver extends NetCDFArchiver {
+		final List<String> built = Collections.synchronizedList(new ArrayList<String>());
+		String failOn = null;
+
+		@Override
+		public Object processFiles(List<File> input, String filename, ArchiveConfigI cfg, Integer year, Integer month) {
+			if (filename.equals(failOn)) {
+				throw new IllegalStateException("failing " + filename);
+			}
+			built.add(filename);
+			return "OK";
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		progressDir = new File(System.getProperty("java.io.tmpdir"), "backfill-" + System.nanoTime());
+		archiver = new RecordingArchiver();
+		victim = new Backfill();
+		victim.setArchiver(archiver);
+		victim.setFileFetcher(new FileFetcher());
+		victim.setConcurrency(2);
+		victim.setProgressDir(progressDir.getPath());
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(progressDir);
+	}
+
+	private List<ArchiveConfig> configs() {
+		ArchiveConfig cfg = new ArchiveConfig();
+		cfg.setInputDir("src/test/resources/input");
+		cfg.setFileRegex(fileRegex);
+		cfg.setRfcCode(999);
+		return Collections.singletonList(cfg);
+	}
+
+	@Test
+	public void testPlan() throws Exception {
+		List<Backfill.Job> plan = victim.plan(configs(), new DateMidnight(1999, 1, 1), new DateMidnight(2001, 12, 1));
+
+		assertEquals("months with input", 2, plan.size());
+		assertEquals("oldest first", 1999, plan.get(0).getYear());
+		assertEquals("files in 2001-02", 2, plan.get(1).getInput().size());
+
+		plan = victim.plan(configs(), new DateMidnight(2000, 1, 1), new DateMidnight(2001, 1, 1));
+		assertEquals("nothing in range", 0, plan.size());
+	}
+
+	@Test
+	public void testRunResumes() throws Exception {
+		DateMidnight from = new DateMidnight(1999, 12, 1);
+		DateMidnight to = new DateMidnight(2001, 2, 1);
+		archiver.failOn = "QPE.2001.02.999.nc";
+
+		assertEquals("failed jobs", 1, victim.run(configs(), from, to));
+		assertEquals("built", Collections.singletonList("QPE.1999.12.999.nc"), archiver.built);
+
+		// second run only does what the first did not finish
+		archiver.failOn = null;
+		archiver.built.clear();
+		assertEquals("failed jobs", 0, victim.run(configs(), from, to));
+		assertEquals("built", Collections.singletonList("QPE.2001.02.999.nc"), archiver.built);
+
+		archiver.built.clear();
+		assertEquals("failed jobs", 0, victim.run(configs(), from, to));
+		assertTrue("nothing left", archiver.built.isEmpty());
+	}
+
+}
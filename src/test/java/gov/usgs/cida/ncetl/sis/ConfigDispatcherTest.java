@@ -0,0 +1,72 @@
+package gov.usgs.cida.ncetl.sis;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.integration.Message;
+import org.springframework.integration.MessagingException;
+import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.core.MessageHandler;
+import org.springframework.integration.support.MessageBuilder;
+
+public class ConfigDispatcherTest {
+
+	private ConfigDispatcher victim;
+	private List<Integer> handled;
+	private QueueChannel errors;
+
+	@Before
+	public void setUp() throws Exception {
+		handled = new ArrayList<Integer>();
+		DirectChannel output = new DirectChannel();
+		output.subscribe(new MessageHandler() {
+			@Override
+			public void handleMessage(Message<?> message) throws MessagingException {
+				int rfc = ((ArchiveConfig) message.getPayload()).getRfcCode();
+				if (rfc == 151) {
+					throw new RuntimeException("bad regex");
+				}
+				handled.add(rfc);
+			}
+		});
+		errors = new QueueChannel();
+
+		victim = new ConfigDispatcher();
+		victim.setOutputChannel(output);
+		victim.setErrorChannel(errors);
+	}
+
+	private static ArchiveConfig config(int rfc) {
+		ArchiveConfig cfg = new ArchiveConfig();
+		cfg.setRfcCode(rfc);
+		cfg.setName("rfc " + rfc);
+		return cfg;
+	}
+
+	@Test
+	public void testFailedConfigIsAnOutcome() {
+		List<ArchiveConfig> configs = new ArrayList<ArchiveConfig>();
+		configs.add(config(150));
+		configs.add(config(151));
+		configs.add(config(152));
+		victim.dispatch(MessageBuilder.withPayload(configs).setHeader(RunTracker.RUN_ID, 7L).build());
+
+		assertEquals("configs after the failed one still sent", 2, handled.size());
+		assertEquals(Integer.valueOf(152), handled.get(1));
+
+		Message<?> error = errors.receive(0);
+		assertNotNull("failure sent as an error", error);
+		assertEquals("rfc", 151, error.getHeaders().get("rfc"));
+		assertEquals("run", 7L, error.getHeaders().get(RunTracker.RUN_ID));
+		MessagingException me = (MessagingException) error.getPayload();
+		assertEquals("run of the failed message", 7L, me.getFailedMessage().getHeaders().get(RunTracker.RUN_ID));
+		assertNull("one error", errors.receive(0));
+	}
+}
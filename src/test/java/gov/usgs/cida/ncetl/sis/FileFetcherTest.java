@@ -6,13 +6,18 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 
 import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
 import gov.usgs.cida.ncetl.jpa.EtlHistory;
+import gov.usgs.cida.ncetl.mocks.MockInputFileIndex;
 
+import org.apache.commons.io.FileUtils;
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
@@ -57,7 +62,7 @@ public class FileFetcherTest {
 		
 		ArchiveConfig cfg = makeConfig("src/test/resources/NOT", null, fileRegex);
 		
-		Message<List<File>> result = victim.listInputFiles(cfg);
+		Message<List<File>> result = victim.listInputFiles(cfg, null, null);
 		
 		assertNotNull("result", result);
 		assertEquals("file list size", 0, result.getPayload().size());
@@ -71,7 +76,7 @@ public class FileFetcherTest {
 		DateTime now = new DateTime(2001,3,7,8,42);
 		victim.setNow(now.toDate());
 		
-		Message<List<File>> result = victim.listInputFiles(cfg);
+		Message<List<File>> result = victim.listInputFiles(cfg, null, null);
 		
 		assertNotNull("result", result);
 		assertEquals("file list size", 2, result.getPayload().size());
@@ -85,7 +90,7 @@ public class FileFetcherTest {
 		DateTime cutoff = new DateTime(2000,1,6,23,33);
 		victim.setNow(cutoff.toDate());
 		
-		Message<List<File>> result = victim.listInputFiles(cfg);
+		Message<List<File>> result = victim.listInputFiles(cfg, null, null);
 		
 		assertNotNull("result", result);
 		assertEquals("file list size", 1, result.getPayload().size());
@@ -99,18 +104,158 @@ public class FileFetcherTest {
 		DateTime cutoff = new DateTime(2000,2,6,23,33);
 		victim.setNow(cutoff.toDate());
 		
-		Message<List<File>> result = victim.listInputFiles(cfg);
+		Message<List<File>> result = victim.listInputFiles(cfg, null, null);
 		
 		assertNotNull("result", result);
 		assertEquals("file list size", 0, result.getPayload().size());
 	}
 
+	@SuppressWarnings("unchecked")
+	private Message<List<File>> listScanned(Message<List<ArchiveConfig>> scan, ArchiveConfig cfg) {
+		return victim.listInputFiles(cfg, (Map<Integer, SortedMap<Integer, List<File>>>) scan.getHeaders().get(FileFetcher.SCANNED_INPUT), null);
+	}
+
+	@Test
+	public void testScanInputDirs_shared() throws Exception {
+		
+		ArchiveConfig cfg = makeConfig("src/test/resources/input", null, fileRegex);
+		cfg.setId(1);
+		ArchiveConfig other = makeConfig("src/test/resources/input", null, "^other_(\\d{4})-(\\d{2})-(\\d{2})\\.txt$");
+		other.setId(2);
+		other.setRfcCode(998);
+		
+		DateTime now = new DateTime(2001,3,7,8,42);
+		victim.setNow(now.toDate());
+		
+		List<ArchiveConfig> configs = new ArrayList<ArchiveConfig>();
+		configs.add(cfg);
+		configs.add(other);
+		Message<List<ArchiveConfig>> scan = victim.scanInputDirs(configs);
+		assertSame("configs passed through", configs, scan.getPayload());
+		
+		// a second scan, as by another run, does not disturb the first
+		victim.setNow(new DateTime(2000,1,6,23,33).toDate());
+		Message<List<ArchiveConfig>> later = victim.scanInputDirs(configs);
+		
+		assertEquals("scanned file list size", 2, listScanned(scan, cfg).getPayload().size());
+		assertEquals("no files for other", 0, listScanned(scan, other).getPayload().size());
+		assertEquals("later scan file list size", 1, listScanned(later, cfg).getPayload().size());
+		assertFalse("scan not passed on", listScanned(scan, cfg).getHeaders().containsKey(FileFetcher.SCANNED_INPUT));
+	}
+
+	@Test
+	public void testScanInputDirs_indexed() throws Exception {
+		
+		ArchiveConfig cfg = makeConfig("src/test/resources/input", null, fileRegex);
+		cfg.setId(1);
+		MockInputFileIndex index = new MockInputFileIndex();
+		victim.setFileIndex(index);
+		
+		DateTime now = new DateTime(2001,3,7,8,42);
+		victim.setNow(now.toDate());
+		
+		Message<List<ArchiveConfig>> scan = victim.scanInputDirs(Collections.singletonList(cfg));
+		assertEquals("every matching file indexed", 3, index.size());
+		assertEquals("indexed file list size", 2, listScanned(scan, cfg).getPayload().size());
+		
+		// directory unchanged, so it is not listed again
+		victim.setNow(new DateTime(2000,1,6,23,33).toDate());
+		scan = victim.scanInputDirs(Collections.singletonList(cfg));
+		assertEquals("one refresh", 1, index.getRefreshCount());
+		assertEquals("other month from index", 1, listScanned(scan, cfg).getPayload().size());
+	}
+
+	@Test
+	public void testScanInputDirs_newConfig() throws Exception {
+		
+		ArchiveConfig cfg = makeConfig("src/test/resources/input", null, fileRegex);
+		MockInputFileIndex index = new MockInputFileIndex();
+		victim.setFileIndex(index);
+		victim.setNow(new DateTime(2001,3,7,8,42).toDate());
+		victim.scanInputDirs(Collections.singletonList(cfg));
+		
+		// directory unchanged, but the added config was never indexed
+		ArchiveConfig added = makeConfig("src/test/resources/input", null, fileRegex);
+		added.setRfcCode(998);
+		List<ArchiveConfig> configs = new ArrayList<ArchiveConfig>();
+		configs.add(cfg);
+		configs.add(added);
+		Message<List<ArchiveConfig>> scan = victim.scanInputDirs(configs);
+		assertEquals("listed again", 2, index.getRefreshCount());
+		assertEquals("added config file list size", 2, listScanned(scan, added).getPayload().size());
+		
+		victim.scanInputDirs(configs);
+		assertEquals("then current", 2, index.getRefreshCount());
+		
+		// a changed regex has its entries matched again
+		added.setFileRegex("^sample_(\\d{4})-(\\d{2})-(2\\d)\\.txt$");
+		scan = victim.scanInputDirs(configs);
+		assertEquals("changed config file list size", 1, listScanned(scan, added).getPayload().size());
+		assertEquals("other config kept", 2, listScanned(scan, cfg).getPayload().size());
+	}
+
+	@Test
+	public void testFindInput_range() throws Exception {
+		
+		ArchiveConfig cfg = makeConfig("src/test/resources/input", null, fileRegex);
+		
+		Map<Integer, SortedMap<Integer, List<File>>> found = victim.findInput(Collections.singletonList(cfg),
+				FileFetcher.monthIndex(1999, 1), FileFetcher.monthIndex(2001, 12));
+		
+		SortedMap<Integer, List<File>> months = found.get(999);
+		assertEquals("months with input", 2, months.size());
+		assertEquals("oldest first", FileFetcher.monthIndex(1999, 12), months.firstKey().intValue());
+		assertEquals("files in 2001-02", 2, months.get(FileFetcher.monthIndex(2001, 2)).size());
+	}
+
+	@Test
+	public void testFindInput_completeDir() throws Exception {
+		
+		File base = new File(System.getProperty("java.io.tmpdir"), "fetcher-" + System.nanoTime());
+		File inputDir = new File(base, "input");
+		File completeDir = new File(base, "complete");
+		try {
+			// the month was archived and its inputs moved, then one came late and one was delivered again
+			FileUtils.writeStringToFile(new File(completeDir, "sample_2001-02-01.txt"), "archived");
+			FileUtils.writeStringToFile(new File(completeDir, "sample_2001-02-21.txt"), "archived");
+			FileUtils.writeStringToFile(new File(inputDir, "sample_2001-02-11.txt"), "late");
+			FileUtils.writeStringToFile(new File(inputDir, "sample_2001-02-21.txt"), "again");
+			ArchiveConfig cfg = makeConfig(inputDir.getPath(), null, fileRegex);
+			cfg.setCompleteDir(" " + completeDir.getPath() + " ");
+			int month = FileFetcher.monthIndex(2001, 2);
+			
+			List<File> files = victim.findInput(Collections.singletonList(cfg), month, month, true).get(999).get(month);
+			assertEquals("whole month", 3, files.size());
+			assertEquals("time order", "sample_2001-02-11.txt", files.get(1).getName());
+			assertEquals("input dir copy taken", inputDir, files.get(2).getParentFile());
+			
+			assertEquals("new input only", 2, victim.findInput(Collections.singletonList(cfg), month, month).get(999).get(month).size());
+			
+			victim.setNow(new DateTime(2001,3,7,8,42).toDate());
+			List<File> listed = victim.listInputFiles(cfg, null, null).getPayload();
+			assertEquals("rebuilt from both", 3, listed.size());
+			
+			// a later day in complete than in input: by path the late day 11 would go after day 21
+			Collections.reverse(listed);
+			List<Message<File>> split = victim.split(listed, cfg);
+			assertEquals("split in time order", Arrays.asList("sample_2001-02-01.txt", "sample_2001-02-11.txt", "sample_2001-02-21.txt"), 
+					names(split));
+			Collections.reverse(split);
+			List<File> aggregated = new FileListAggregator().aggregate(split).getPayload();
+			assertEquals("aggregated in time order", "sample_2001-02-11.txt", aggregated.get(1).getName());
+			assertEquals("archived day first", completeDir, aggregated.get(0).getParentFile());
+			assertEquals("day delivered again last", inputDir, aggregated.get(2).getParentFile());
+		} finally {
+			FileUtils.deleteQuietly(base);
+		}
+	}
+
 	@Test(expected=RuntimeException.class)
 	public void testListInputFiles_regexValidation()  throws Exception {
 		
 		ArchiveConfig cfg = makeConfig("src/test/resources/input", null, "^sample_(\\d{4})-\\d{2}-(\\d{2})\\.txt$");
 		
-		Message<List<File>> result = victim.listInputFiles(cfg);
+		Message<List<File>> result = victim.listInputFiles(cfg, null, null);
 		
 		assertNotNull("result", result);
 		assertEquals("file list size", 1, result.getPayload().size());
@@ -144,4 +289,12 @@ public class FileFetcherTest {
 		}
 	}
 
+	private static List<String> names(List<Message<File>> messages) {
+		List<String> names = new ArrayList<String>(messages.size());
+		for (Message<File> message : messages) {
+			names.add(message.getPayload().getName());
+		}
+		return names;
+	}
+
 }
@@ -0,0 +1,222 @@
+package gov.usgs.cida.ncetl.sis;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.mocks.MockSpecManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.integration.Message;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.store.SimpleMessageStore;
+import org.springframework.integration.support.MessageBuilder;
+
+public class FileListAggregatorTest {
+
+	private FileListAggregator victim;
+	private ArchiveConfig cfg;
+	private List<File> payload;
+	private List<Message<File>> split;
+
+	@Before
+	public void setUp() throws Exception {
+		victim = new FileListAggregator();
+		
+		cfg = new ArchiveConfig();
+		cfg.setFileRegex("^QPE\\.(\\d{4})(\\d{2})(\\d{2})\\.(\\d{2})\\.grib$");
+		cfg.setRfcCode(999);
+		
+		// hourly input: several files a day
+		payload = new ArrayList<File>();
+		for (int day = 1; day <= 2; day++) {
+			for (int hour = 0; hour < 5; hour++) {
+				payload.add(new File("/tmp", String.format("QPE.200103%02d.%02d.grib", day, hour)));
+			}
+		}
+		split = new FileFetcher().split(payload, cfg);
+	}
+
+	private List<Message<?>> first(int n) {
+		return new ArrayList<Message<?>>(split.subList(0, n));
+	}
+
+	@Test
+	public void testSplitNumbersEachFile() {
+		assertEquals("messages", 10, split.size());
+		for (int i = 0; i < split.size(); i++) {
+			assertEquals("sequence number", i + 1, split.get(i).getHeaders().getSequenceNumber().intValue());
+			assertEquals("file count", 10, split.get(i).getHeaders().get(FileListAggregator.FILE_COUNT));
+		}
+	}
+
+	@Test
+	public void testReleaseOnFileCount() {
+		assertFalse("nine of ten", victim.canRelease(first(9)));
+		assertTrue("all ten", victim.canRelease(first(10)));
+		
+		Message<List<File>> released = victim.aggregate(split);
+		assertEquals("files", 10, released.getPayload().size());
+		assertEquals("only list", 0, released.getHeaders().get(FileListAggregator.BATCH_INDEX));
+		assertEquals("last list", Boolean.TRUE, released.getHeaders().get(FileListAggregator.LAST_BATCH));
+	}
+
+	@Test
+	public void testSubBatches() {
+		victim.setSubBatchSize(4);
+		
+		assertFalse("three", victim.canRelease(first(3)));
+		assertTrue("four", victim.canRelease(first(4)));
+		Message<List<File>> released = victim.aggregate(split.subList(0, 4));
+		assertEquals("first list", 0, released.getHeaders().get(FileListAggregator.BATCH_INDEX));
+		assertEquals("not last", Boolean.FALSE, released.getHeaders().get(FileListAggregator.LAST_BATCH));
+		
+		released = victim.aggregate(split.subList(4, 8));
+		assertEquals("second list", 1, released.getHeaders().get(FileListAggregator.BATCH_INDEX));
+		
+		// the last two are the rest of the month
+		assertTrue("rest", victim.canRelease(new ArrayList<Message<?>>(split.subList(8, 10))));
+		released = victim.aggregate(split.subList(8, 10));
+		assertEquals("third list", 2, released.getHeaders().get(FileListAggregator.BATCH_INDEX));
+		assertEquals("last", Boolean.TRUE, released.getHeaders().get(FileListAggregator.LAST_BATCH));
+	}
+
+	@Test
+	public void testResumeFromStore() throws Exception {
+		// a run stopped after six files were gathered; the store kept them without their config
+		FileMessageSerializer serializer = new FileMessageSerializer();
+		SimpleMessageStore store = new SimpleMessageStore();
+		String ofName = (String) split.get(0).getHeaders().get("outputFile");
+		for (Message<File> message : split.subList(0, 6)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			serializer.serialize(message, bytes);
+			store.addMessageToGroup(ofName, serializer.deserialize(new ByteArrayInputStream(bytes.toByteArray())));
+		}
+		
+		FileFetcher fetcher = new FileFetcher();
+		fetcher.setMessageGroupStore(store);
+		List<Message<File>> rest = fetcher.split(new ArrayList<File>(payload), cfg);
+		assertEquals("only new files", 4, rest.size());
+		assertEquals("numbered after the stored ones", 7, rest.get(0).getHeaders().getSequenceNumber().intValue());
+		
+		List<Message<File>> group = new ArrayList<Message<File>>();
+		for (Message<?> message : store.getMessageGroup(ofName).getMessages()) {
+			@SuppressWarnings("unchecked")
+			Message<File> stored = (Message<File>) message;
+			group.add(stored);
+		}
+		group.addAll(rest);
+		assertFalse("one short", victim.canRelease(new ArrayList<Message<?>>(group.subList(0, 9))));
+		assertTrue("all ten", victim.canRelease(new ArrayList<Message<?>>(group)));
+		
+		Message<List<File>> released = victim.aggregate(group);
+		assertEquals("files", 10, released.getPayload().size());
+		assertSame("config of this run", cfg, released.getHeaders().get("config"));
+		assertEquals("year", 2001, released.getHeaders().get("year"));
+	}
+	
+	@Test
+	public void testResumeWithNothingNew() throws Exception {
+		SimpleMessageStore store = new SimpleMessageStore();
+		String ofName = (String) split.get(0).getHeaders().get("outputFile");
+		for (Message<File> message : split) {
+			store.addMessageToGroup(ofName, message);
+		}
+		
+		FileFetcher fetcher = new FileFetcher();
+		fetcher.setMessageGroupStore(store);
+		List<Message<File>> rest = fetcher.split(new ArrayList<File>(payload), cfg);
+		assertTrue("nothing sent again", rest.isEmpty());
+		assertEquals("left in the store", 10, store.getMessageGroup(ofName).size());
+	}
+
+	@Test
+	public void testRecoverCompleteGroup() throws Exception {
+		String ofName = (String) split.get(0).getHeaders().get("outputFile");
+		// as read back from the store after a restart
+		FileMessageSerializer serializer = new FileMessageSerializer();
+		SimpleMessageStore stored = new SimpleMessageStore();
+		for (Message<File> message : split) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			serializer.serialize(message, bytes);
+			stored.addMessageToGroup(ofName, serializer.deserialize(new ByteArrayInputStream(bytes.toByteArray())));
+		}
+		// still short, left for the next run
+		stored.addMessageToGroup("QPE.2001.04.999.nc", split.get(0));
+		
+		QueueChannel out = new QueueChannel();
+		StoredGroupRecovery recovery = new StoredGroupRecovery();
+		recovery.setMessageGroupStore(stored);
+		recovery.setAggregator(victim);
+		recovery.setConfigFetcher(new MockSpecManager());
+		recovery.setOutputChannel(out);
+		assertEquals("released", 1, recovery.recover());
+		
+		Message<?> list = out.receive(0);
+		assertEquals("files", 10, ((List<?>) list.getPayload()).size());
+		assertNotNull("config", list.getHeaders().get("config"));
+		assertEquals("output", ofName, list.getHeaders().get("outputFile"));
+		assertEquals("last list", Boolean.TRUE, list.getHeaders().get(FileListAggregator.LAST_BATCH));
+		assertEquals("of no run", RunTracker.NO_RUN, list.getHeaders().get(RunTracker.RUN_ID));
+		assertEquals("removed from the store", 0, stored.getMessageGroup(ofName).size());
+		assertEquals("short group kept", 1, stored.getMessageGroup("QPE.2001.04.999.nc").size());
+	}
+
+	@Test
+	public void testSubBatchesAcrossRestart() throws Exception {
+		SimpleMessageStore store = new SimpleMessageStore();
+		ReleasedBatches released = new ReleasedBatches();
+		released.setMessageGroupStore(store);
+		victim.setSubBatchSize(4);
+		victim.setReleasedBatches(released);
+		assertEquals("first list", 0, victim.aggregate(split.subList(0, 4)).getHeaders().get(FileListAggregator.BATCH_INDEX));
+		
+		// restarted: only the store is left
+		released = new ReleasedBatches();
+		released.setMessageGroupStore(store);
+		FileListAggregator restarted = new FileListAggregator();
+		restarted.setSubBatchSize(4);
+		restarted.setReleasedBatches(released);
+		FileFetcher fetcher = new FileFetcher();
+		fetcher.setMessageGroupStore(store);
+		fetcher.setReleasedBatches(released);
+		
+		List<Message<File>> rest = fetcher.split(new ArrayList<File>(payload), cfg);
+		assertEquals("released files not split again", 6, rest.size());
+		assertEquals("counted with the month", 10, rest.get(0).getHeaders().get(FileListAggregator.FILE_COUNT));
+		
+		Message<List<File>> next = restarted.aggregate(rest.subList(0, 4));
+		assertEquals("numbered on", 1, next.getHeaders().get(FileListAggregator.BATCH_INDEX));
+		assertTrue("rest of the month", restarted.canRelease(new ArrayList<Message<?>>(rest.subList(4, 6))));
+		next = restarted.aggregate(rest.subList(4, 6));
+		assertEquals("last", Boolean.TRUE, next.getHeaders().get(FileListAggregator.LAST_BATCH));
+		assertEquals("record dropped", 0, released.fileCount((String) next.getHeaders().get("outputFile")));
+	}
+
+	@Test
+	public void testFailedSubBatchStartsOver() throws Exception {
+		SimpleMessageStore store = new SimpleMessageStore();
+		ReleasedBatches released = new ReleasedBatches();
+		released.setMessageGroupStore(store);
+		victim.setSubBatchSize(4);
+		victim.setReleasedBatches(released);
+		Message<List<File>> list = victim.aggregate(split.subList(0, 4));
+		
+		// as grib-writer sends it to errorChannel
+		released.failed(MessageBuilder.withPayload("failed").copyHeaders(list.getHeaders()).build());
+		
+		FileFetcher fetcher = new FileFetcher();
+		fetcher.setMessageGroupStore(store);
+		fetcher.setReleasedBatches(released);
+		List<Message<File>> again = fetcher.split(new ArrayList<File>(payload), cfg);
+		assertEquals("whole month split again", 10, again.size());
+		assertEquals("from the first list", 0, victim.aggregate(again.subList(0, 4)).getHeaders().get(FileListAggregator.BATCH_INDEX));
+	}
+
+}
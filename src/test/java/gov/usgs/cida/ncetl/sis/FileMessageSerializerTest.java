@@ -0,0 +1,50 @@
+package gov.usgs.cida.ncetl.sis;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+
+import org.junit.Test;
+import org.springframework.integration.Message;
+import org.springframework.integration.MessageHeaders;
+import org.springframework.integration.support.MessageBuilder;
+
+public class FileMessageSerializerTest {
+
+	private FileMessageSerializer victim = new FileMessageSerializer();
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Message<File> message = MessageBuilder.withPayload(new File("/tmp/QPE.20010301.00.grib"))
+				.setHeader("config", new ArchiveConfig())
+				.setHeader("rfc", 999)
+				.setHeader("outputFile", "QPE.2001.03.999.nc")
+				.setHeader("year", 2001)
+				.setHeader("month", 3)
+				.setHeader(FileListAggregator.FILE_COUNT, 744)
+				.pushSequenceDetails("QPE.2001.03.999.nc", 17, 744)
+				.build();
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		victim.serialize(message, bytes);
+		System.out.printf("Stored message is %d bytes\n", bytes.size());
+		assertTrue("compact", bytes.size() < 256);
+		
+		Message<?> back = victim.deserialize(new ByteArrayInputStream(bytes.toByteArray()));
+		MessageHeaders headers = back.getHeaders();
+		assertEquals("payload", message.getPayload(), back.getPayload());
+		assertEquals("stored id", message.getHeaders().getId(), headers.get(FileMessageSerializer.STORED_ID));
+		assertEquals("stored timestamp", message.getHeaders().getTimestamp(), headers.get(FileMessageSerializer.STORED_TIMESTAMP));
+		assertEquals("correlation", "QPE.2001.03.999.nc", headers.getCorrelationId());
+		assertEquals("sequence", 17, headers.getSequenceNumber().intValue());
+		assertEquals("size", 744, headers.getSequenceSize().intValue());
+		assertEquals("file count", 744, headers.get(FileListAggregator.FILE_COUNT));
+		assertEquals("month", 3, headers.get("month"));
+		assertFalse("no config", headers.containsKey("config"));
+	}
+
+}
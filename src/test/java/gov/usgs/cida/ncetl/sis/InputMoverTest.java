@@ -0,0 +1,96 @@
+package gov.usgs.cida.ncetl.sis;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InputMoverTest {
+
+	private InputMover victim;
+	private File inputDir;
+	private File completeDir;
+
+	@Before
+	public void setUp() throws Exception {
+		File base = new File(System.getProperty("java.io.tmpdir"), "mover-" + System.nanoTime());
+		inputDir = new File(base, "input");
+		completeDir = new File(base, "complete");
+		FileUtils.forceMkdir(inputDir);
+		victim = new InputMover();
+		victim.setBatchSize(2);
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(inputDir.getParentFile());
+	}
+
+	private File input(String name) throws Exception {
+		File f = new File(inputDir, name);
+		FileUtils.writeStringToFile(f, name);
+		return f;
+	}
+
+	@Test
+	public void testMoveInBatches() throws Exception {
+		List<File> files = new ArrayList<File>();
+		for (int day = 1; day <= 5; day++) {
+			files.add(input("sample_2001-02-0" + day + ".txt"));
+		}
+		File notConsumed = input("sample_2001-02-06.txt");
+
+		victim.move(files, completeDir, "QPE.2001.02.999.nc");
+
+		for (File f : files) {
+			assertFalse("moved " + f, f.exists());
+			assertTrue("in complete dir " + f, new File(completeDir, f.getName()).exists());
+		}
+		assertTrue("left alone", notConsumed.exists());
+		assertEquals("no journal left", 5, completeDir.list().length);
+	}
+
+	@Test
+	public void testRecoverJournal() throws Exception {
+		File moved = input("sample_2001-02-01.txt");
+		File pending = input("sample_2001-02-02.txt");
+		FileUtils.forceMkdir(completeDir);
+		// as left by a crash after the first move of the batch
+		FileUtils.moveFileToDirectory(moved, completeDir, false);
+		File journal = new File(completeDir, ".QPE.2001.02.999.nc.0" + InputMover.JOURNAL_SUFFIX);
+		FileUtils.writeStringToFile(journal,
+				moved.getAbsolutePath() + "\t" + new File(completeDir, moved.getName()).getAbsolutePath() + "\n"
+				+ pending.getAbsolutePath() + "\t" + new File(completeDir, pending.getName()).getAbsolutePath() + "\n"
+				+ "/cut/short");
+
+		victim.move(Collections.<File>emptyList(), completeDir, "QPE.2001.03.999.nc");
+
+		assertFalse("journal finished", journal.exists());
+		assertFalse("pending moved", pending.exists());
+		assertTrue("pending in complete dir", new File(completeDir, pending.getName()).exists());
+		assertTrue("moved still there", new File(completeDir, moved.getName()).exists());
+	}
+
+	@Test
+	public void testRebuiltFromCompleteDir() throws Exception {
+		File late = input("sample_2001-02-28.txt");
+		FileUtils.forceMkdir(completeDir);
+		File archived = new File(completeDir, "sample_2001-02-01.txt");
+		FileUtils.writeStringToFile(archived, archived.getName());
+
+		victim.move(Arrays.asList(archived, late), completeDir, "QPE.2001.02.999.nc");
+
+		assertTrue("archived left in place", archived.exists());
+		assertTrue("late moved", new File(completeDir, late.getName()).exists());
+		assertEquals("no journal left", 2, completeDir.list().length);
+	}
+
+}
@@ -0,0 +1,110 @@
+package gov.usgs.cida.ncetl.sis;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+import gov.usgs.cida.ncetl.jpa.EtlHistoryManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.Lifecycle;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.support.MessageBuilder;
+
+public class RunSchedulerTest {
+
+	private RunScheduler victim;
+	private LatchTrigger trigger;
+	private RunTracker tracker;
+	private QueueChannel finis;
+	private QueueChannel errors;
+	private FakeFetcher fetcher;
+	private final List<String> recorded = new ArrayList<String>();
+
+	// stands in for config-fetcher and the flow behind it
+	private class FakeFetcher implements Lifecycle {
+		int polls = 0;
+		boolean finish = true;
+		boolean running = false;
+
+		@Override
+		public void start() {
+			running = true;
+			if (trigger.nextExecutionTime(null) != null) {
+				polls++;
+				List<ArchiveConfig> configs = new ArrayList<ArchiveConfig>();
+				configs.add(new ArchiveConfig());
+				tracker.start(configs);
+				if (finish) {
+					finis.send(MessageBuilder.withPayload("outcomes").build());
+				}
+			}
+		}
+
+		@Override
+		public void stop() {
+			running = false;
+		}
+
+		@Override
+		public boolean isRunning() {
+			return running;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		trigger = new LatchTrigger();
+		tracker = new RunTracker();
+		tracker.setRunTimeout(200);
+		finis = new QueueChannel();
+		errors = new QueueChannel();
+		fetcher = new FakeFetcher();
+
+		victim = new RunScheduler();
+		victim.setTrigger(trigger);
+		victim.setConfigFetcher(fetcher);
+		victim.setFileFetcher(new FileFetcher());
+		victim.setRunTracker(tracker);
+		victim.setFinis(finis);
+		victim.setErrorQueue(errors);
+		victim.setHistoryManager(new EtlHistoryManager() {
+			@Override
+			public void recordRun(String msg) {
+				recorded.add(msg);
+			}
+		});
+	}
+
+	@Test
+	public void testEachRunPollsOnce() {
+		String outcome = victim.runOnce("test");
+		System.out.printf("outcome %s\n", outcome);
+		assertTrue("finished", outcome.contains("finished"));
+		assertEquals("polls", 1, fetcher.polls);
+		assertFalse("fetcher stopped", fetcher.isRunning());
+
+		victim.runOnce("test");
+		assertEquals("polls", 2, fetcher.polls);
+		assertEquals("recorded", 2, recorded.size());
+	}
+
+	@Test
+	public void testTimeoutAndErrors() {
+		fetcher.finish = false;
+		errors.send(MessageBuilder.withPayload("left from before").build());
+		String outcome = victim.runOnce("test");
+		assertTrue("timed out", outcome.contains("did not finish"));
+		assertTrue("earlier errors not counted", outcome.endsWith("0 errors"));
+		assertEquals("recorded", outcome, recorded.get(0));
+	}
+
+	@Test
+	public void testRunNowNeedsStart() {
+		assertEquals("not started", victim.runNow());
+	}
+
+}
@@ -0,0 +1,77 @@
+package gov.usgs.cida.ncetl.sis;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import gov.usgs.cida.ncetl.jpa.ArchiveConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.integration.Message;
+import org.springframework.integration.support.MessageBuilder;
+
+public class RunTrackerTest {
+
+	private RunTracker victim;
+
+	@Before
+	public void setUp() throws Exception {
+		victim = new RunTracker();
+	}
+
+	private Message<?> outcome(Integer rfc) {
+		MessageBuilder<String> mb = MessageBuilder.withPayload("outcome");
+		if (rfc != null) {
+			mb.setHeader("rfc", rfc);
+		}
+		return mb.build();
+	}
+
+	@Test
+	public void testReleaseOnExpectedCount() {
+		List<ArchiveConfig> configs = new ArrayList<ArchiveConfig>();
+		configs.add(new ArchiveConfig());
+		configs.add(new ArchiveConfig());
+		assertNull("no outcome of its own", victim.start(configs));
+
+		List<Message<?>> outcomes = new ArrayList<Message<?>>();
+		outcomes.add(outcome(150));
+		assertFalse("one of two", victim.canRelease(outcomes));
+		outcomes.add(outcome(null));
+		assertTrue("two of two", victim.canRelease(outcomes));
+	}
+
+	@Test
+	public void testLateOutcomeIgnored() {
+		long timedOut = victim.getRunId();
+		victim.reset();
+		assertTrue("new run id", victim.getRunId() != timedOut);
+		List<ArchiveConfig> configs = new ArrayList<ArchiveConfig>();
+		configs.add(new ArchiveConfig());
+		victim.start(configs);
+
+		List<Message<?>> outcomes = new ArrayList<Message<?>>();
+		outcomes.add(MessageBuilder.fromMessage(outcome(150)).setHeader(RunTracker.RUN_ID, timedOut).build());
+		outcomes.add(MessageBuilder.fromMessage(outcome(151)).setHeader(RunTracker.RUN_ID, RunTracker.NO_RUN).build());
+		assertFalse("not this run's", victim.canRelease(outcomes));
+		outcomes.add(MessageBuilder.fromMessage(outcome(150)).setHeader(RunTracker.RUN_ID, victim.getRunId()).build());
+		assertTrue("this run's", victim.canRelease(outcomes));
+	}
+
+	@Test
+	public void testNoConfigs() {
+		String outcome = victim.start(Collections.<ArchiveConfig>emptyList());
+		assertNotNull("nothing to do", outcome);
+		assertTrue("own outcome releases", victim.canRelease(Collections.<Message<?>>singletonList(outcome(null))));
+	}
+
+	@Test
+	public void testFailureBeforeScan() {
+		assertFalse("config outcome before scan", victim.canRelease(Collections.<Message<?>>singletonList(outcome(150))));
+		assertTrue("run-level error", victim.canRelease(Collections.<Message<?>>singletonList(outcome(null))));
+	}
+
+}